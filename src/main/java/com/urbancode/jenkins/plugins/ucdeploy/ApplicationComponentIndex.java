@@ -0,0 +1,72 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class indexes the names of the components in each application, so
+ * builds can check application membership without downloading every
+ * component of the application
+ *
+ */
+public class ApplicationComponentIndex {
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+    private static final ConcurrentMap<String, Members> INDEX = new ConcurrentHashMap<String, Members>();
+
+    private ApplicationComponentIndex() {}
+
+    /**
+     * @param serverUrl The url of the UCD server
+     * @param application The name of the application
+     * @return The names of the components in the application, or null if they aren't indexed or have expired
+     */
+    public static Set<String> get(String serverUrl, String application) {
+        String key = key(serverUrl, application);
+        Members members = INDEX.get(key);
+
+        if (members != null && System.currentTimeMillis() - members.loaded > TTL) {
+            INDEX.remove(key, members);
+            return null;
+        }
+        return members == null ? null : Collections.unmodifiableSet(members.names);
+    }
+
+    public static void put(String serverUrl, String application, Collection<String> componentNames) {
+        INDEX.put(key(serverUrl, application), new Members(componentNames));
+    }
+
+    /**
+     * Record a component added to the application by the plugin
+     */
+    public static void add(String serverUrl, String application, String componentName) {
+        Members members = INDEX.get(key(serverUrl, application));
+        if (members != null) {
+            members.names.add(componentName);
+        }
+    }
+
+    private static String key(String serverUrl, String application) {
+        return serverUrl + "|" + application;
+    }
+
+    private static class Members {
+        private Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private long loaded;
+
+        private Members(Collection<String> names) {
+            this.names.addAll(names);
+            this.loaded = System.currentTimeMillis();
+        }
+    }
+}
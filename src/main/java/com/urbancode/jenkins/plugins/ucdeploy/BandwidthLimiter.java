@@ -0,0 +1,101 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class is a token bucket limiting the upload rate to a UCD server. One
+ * limiter exists per server in each JVM, so concurrent uploads from the same
+ * agent share its bandwidth.
+ *
+ */
+public class BandwidthLimiter {
+    private static final Map<String, BandwidthLimiter> LIMITERS = new HashMap<String, BandwidthLimiter>();
+
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    private BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Get the limiter shared by all uploads to a server, updating its rate
+     *
+     * @param key The url of the UCD server
+     * @param bytesPerSecond The maximum upload rate, 0 or less for unlimited
+     * @return The shared limiter, or null if uploads are unlimited
+     */
+    public static BandwidthLimiter forServer(String key, long bytesPerSecond) {
+        synchronized (LIMITERS) {
+            if (bytesPerSecond <= 0) {
+                LIMITERS.remove(key);
+                return null;
+            }
+
+            BandwidthLimiter limiter = LIMITERS.get(key);
+            if (limiter == null) {
+                limiter = new BandwidthLimiter(bytesPerSecond);
+                LIMITERS.put(key, limiter);
+            }
+            else {
+                limiter.setRate(bytesPerSecond);
+            }
+            return limiter;
+        }
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    private synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = Math.min(tokens, bytesPerSecond);
+    }
+
+    /**
+     * Reserve bandwidth for the given number of bytes, waiting until the
+     * reservation is covered. Reservations may run the bucket negative, so
+     * callers are served in the order they asked.
+     *
+     * @param bytes The number of bytes about to be written
+     * @throws InterruptedIOException
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long waitMillis;
+        synchronized (this) {
+            refill();
+            tokens -= bytes;
+            waitMillis = tokens < 0 ? (long) Math.ceil(-tokens * 1000.0 / bytesPerSecond) : 0L;
+        }
+
+        if (waitMillis > 0) {
+            try {
+                Thread.sleep(waitMillis);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class buffers the console output of a build step and keeps per-item
+ * detail lines, such as every property set or every snapshot change, out of
+ * the console once there are many of them. The buffer is flushed every second
+ * instead of on every line, which matters when the console is a remote stream.
+ * All detail lines are written to a log file in the build artifacts when the
+ * step finishes. On an agent the detail lines are kept instead, to be sent
+ * back and written to the build artifacts on the controller.
+ *
+ */
+public class BuildLogger extends StreamTaskListener {
+    private static final long serialVersionUID = 1L;
+    private static final int CONSOLE_DETAIL_LINES = 50;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "UCD build log flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * How much detail goes to the console
+     */
+    public enum Level {
+        /** No detail lines on the console */
+        QUIET,
+        /** The first detail lines on the console, the rest only in the detail log */
+        NORMAL,
+        /** Every detail line on the console */
+        VERBOSE;
+
+        /**
+         * @param level The name of the level, empty for the default level
+         * @throws AbortException If the name isn't a level
+         */
+        public static Level parse(String level) throws AbortException {
+            if (level == null || level.trim().isEmpty()) {
+                return NORMAL;
+            }
+            for (Level value : values()) {
+                if (value.name().equalsIgnoreCase(level.trim())) {
+                    return value;
+                }
+            }
+            throw new AbortException("Log Level must be one of quiet, normal or verbose, not '" + level + "'");
+        }
+    }
+
+    private transient Level level;
+    private transient FilePath detailDir;
+    private transient String detailName;
+    private transient StringBuilder detail = new StringBuilder();
+    private transient int detailLines;
+    private transient ScheduledFuture<?> flushTask;
+
+    /**
+     * @param listener The listener of the build step
+     * @param level How much detail goes to the console
+     * @param detailDir The directory to write the detail log to, normally the build artifacts,
+     *                  or null to keep the detail lines for the caller to write
+     * @param detailName The name of the detail log without extension
+     */
+    public BuildLogger(TaskListener listener, Level level, FilePath detailDir, String detailName) {
+        super(new BufferedOutputStream(listener.getLogger(), BUFFER_SIZE));
+        this.level = level;
+        this.detailDir = detailDir;
+        this.detailName = detailName;
+        flushTask = FLUSHER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                getLogger().flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log a per-item line, which only goes to the console depending on the level
+     * and the number of detail lines so far
+     */
+    public synchronized void detail(String line) {
+        detailLines++;
+        detail.append(line).append('\n');
+
+        if (level == Level.VERBOSE || (level == Level.NORMAL && detailLines <= CONSOLE_DETAIL_LINES)) {
+            getLogger().println(line);
+        }
+        else if (level == Level.NORMAL && detailLines == CONSOLE_DETAIL_LINES + 1) {
+            getLogger().println("[UCD] more than " + CONSOLE_DETAIL_LINES + " detail lines, the rest are only written " +
+                                "to the build artifact " + detailName + ".log");
+        }
+    }
+
+    /**
+     * Log a per-item line to a listener, as detail if the listener is a build logger
+     */
+    public static void detail(TaskListener listener, String line) {
+        if (listener instanceof BuildLogger) {
+            ((BuildLogger)listener).detail(line);
+        }
+        else {
+            listener.getLogger().println(line);
+        }
+    }
+
+    /**
+     * @return The detail lines logged so far
+     */
+    public synchronized String getDetail() {
+        return detail.toString();
+    }
+
+    /**
+     * @return The number of detail lines logged so far
+     */
+    public synchronized int getDetailLines() {
+        return detailLines;
+    }
+
+    /**
+     * @return The number of detail lines kept off the console
+     */
+    public synchronized int getOmittedLines() {
+        if (level == Level.QUIET) {
+            return detailLines;
+        }
+        else if (level == Level.NORMAL) {
+            return Math.max(0, detailLines - CONSOLE_DETAIL_LINES);
+        }
+        return 0;
+    }
+
+    /**
+     * Flush the console and write the detail log, unless the detail lines are kept
+     * for the caller. The console stream of the build step stays open.
+     */
+    @Override
+    public synchronized void close() {
+        flushTask.cancel(false);
+        if (detailDir != null) {
+            writeDetailLog(this, detailDir, detailName, detail.toString(), detailLines, getOmittedLines());
+            detail = new StringBuilder();
+        }
+        getLogger().flush();
+    }
+
+    /**
+     * Write detail lines to a log file, reporting on the console how many of them
+     * only went to the file
+     *
+     * @param listener The console of the build step
+     * @param detailDir The directory to write the detail log to, normally the build artifacts
+     * @param detailName The name of the detail log without extension
+     * @param detail The detail lines
+     * @param lines The number of detail lines
+     * @param omitted The number of detail lines kept off the console
+     */
+    public static void writeDetailLog(TaskListener listener, FilePath detailDir, String detailName, String detail,
+            int lines, int omitted) {
+        if (lines == 0) {
+            return;
+        }
+        try {
+            FilePath detailLog = uniqueDetailLog(detailDir, detailName);
+            detailLog.write(detail, "UTF-8");
+            if (omitted > 0) {
+                listener.getLogger().println("[UCD] " + omitted + " of " + lines + " detail lines were only written to " +
+                                             "the build artifact " + detailLog.getName());
+            }
+        }
+        catch (IOException ex) {
+            listener.getLogger().println("[Warning] Failed to write the detail log: " + ex.getMessage());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            listener.getLogger().println("[Warning] Interrupted while writing the detail log");
+        }
+    }
+
+    /**
+     * @return A detail log not written yet by an earlier step of the build
+     */
+    private static FilePath uniqueDetailLog(FilePath detailDir, String detailName)
+    throws IOException, InterruptedException {
+        detailDir.mkdirs();
+        FilePath detailLog = detailDir.child(detailName + ".log");
+        for (int i = 2; detailLog.exists(); i++) {
+            detailLog = detailDir.child(detailName + "-" + i + ".log");
+        }
+        return detailLog;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.urbancode.ud.client.UDRestClient;
+
+/**
+ * This class keeps the http clients of the JVM it runs in, usually an agent,
+ * so pushes to the same site with the same credentials reuse warm connections.
+ * Clients are keyed by site url and a fingerprint of the credentials. A daemon
+ * timer, running only while the registry holds clients, closes connections and
+ * shuts down clients once nobody has used them for a while.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class ClientRegistry {
+    public static final Logger log = LoggerFactory.getLogger(ClientRegistry.class);
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final long EVICTION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static final Map<String, Entry> CLIENTS = new HashMap<String, Entry>();
+    private static Timer evictionTimer;
+
+    private ClientRegistry() {}
+
+    /**
+     * Lease a client, creating it if the registry doesn't hold one for the site and credentials
+     *
+     * @param url The url of the UCD site
+     * @param user The user to connect as
+     * @param password The password of the user
+     * @param trustAllCerts Whether to trust all certificates
+     * @return The lease, which must be released when the client is no longer used
+     */
+    public static Lease acquire(String url, String user, String password, boolean trustAllCerts) {
+        String key = url + "|" + user + "|" + trustAllCerts + "|" + fingerprint(password);
+        long now = System.currentTimeMillis();
+
+        synchronized (CLIENTS) {
+            evictIdle(now);
+
+            Entry entry = CLIENTS.get(key);
+            if (entry == null) {
+                log.info("[UrbanCode Deploy] creating client for " + url + " as " + user);
+                entry = new Entry(ConcurrentClients.threadSafe(UDRestClient.createHttpClient(user, password, trustAllCerts)));
+                CLIENTS.put(key, entry);
+                scheduleEviction();
+            }
+            entry.leases++;
+            entry.lastUsed = now;
+            return new Lease(entry);
+        }
+    }
+
+    /**
+     * Start the timer evicting idle clients, if it isn't running. Called holding the registry.
+     */
+    private static void scheduleEviction() {
+        if (evictionTimer != null) {
+            return;
+        }
+        evictionTimer = new Timer("UCD client eviction", true);
+        evictionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (CLIENTS) {
+                    evictIdle(System.currentTimeMillis());
+                }
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL);
+    }
+
+    /**
+     * Shut down the clients no lease has used within the idle timeout and close the idle
+     * connections of the others, stopping the timer once no client is left. Called holding
+     * the registry.
+     */
+    private static void evictIdle(long now) {
+        Iterator<Entry> entries = CLIENTS.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.leases == 0 && now - entry.lastUsed > IDLE_TIMEOUT) {
+                entries.remove();
+                entry.client.getConnectionManager().shutdown();
+            }
+            else {
+                entry.client.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (CLIENTS.isEmpty() && evictionTimer != null) {
+            evictionTimer.cancel();
+            evictionTimer = null;
+        }
+    }
+
+    private static String fingerprint(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((password != null ? password : "").getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // never keep the password itself as a key
+            return Integer.toHexString((password != null ? password : "").hashCode());
+        }
+    }
+
+    private static class Entry {
+        private DefaultHttpClient client;
+        private int leases;
+        private long lastUsed;
+
+        private Entry(DefaultHttpClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * The use of a registered client by one push
+     */
+    public static class Lease {
+        private Entry entry;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public DefaultHttpClient getClient() {
+            return entry.client;
+        }
+
+        public void release() {
+            synchronized (CLIENTS) {
+                if (!released) {
+                    released = true;
+                    entry.leases--;
+                    entry.lastUsed = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+}
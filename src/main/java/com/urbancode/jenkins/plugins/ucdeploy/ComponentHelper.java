@@ -13,8 +13,11 @@ import hudson.model.TaskListener;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.URI;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.codehaus.jettison.json.JSONArray;
@@ -40,6 +43,7 @@ public class ComponentHelper {
     private ComponentClient compClient;
     private TaskListener listener;
     private EnvVars envVars;
+    private String serverUrl;
     private String description = "Created from Jekins";
     private int templateVersion = -1;
     private Boolean importAutomatically = false;
@@ -47,10 +51,19 @@ public class ComponentHelper {
 
     public ComponentHelper(ApplicationClient appClient, ComponentClient compClient, TaskListener listener,
             EnvVars envVars) {
+        this(appClient, compClient, listener, envVars, null);
+    }
+
+    /**
+     * @param ucdUrl The url of the UCD server, used to share the application component index between builds
+     */
+    public ComponentHelper(ApplicationClient appClient, ComponentClient compClient, TaskListener listener,
+            EnvVars envVars, URI ucdUrl) {
         this.appClient = appClient;
         this.compClient = compClient;
         this.listener = listener;
         this.envVars = envVars;
+        this.serverUrl = ucdUrl == null ? null : ucdUrl.toString();
     }
 
     public static class CreateComponentBlock implements Serializable {
@@ -123,7 +136,7 @@ public class ComponentHelper {
             } else {
                 defaultVersionType = "FULL";
             }
-            properties = DeliveryBlock.mapProperties(envVars.expand(pullBlock.getPullSourceProperties()));
+            properties = ConfigTemplate.of(pullBlock.getPullSourceProperties()).expandProperties(envVars);
         } else {
             throw new AbortException("Invalid Delivery Type: " + deliveryBlock.getDeliveryType());
         }
@@ -164,38 +177,31 @@ public class ComponentHelper {
                 String value = entry.getValue();
 
                 try {
-                    listener.getLogger().println("Setting component property '" + key + "' to '" + value + "'");
+                    BuildLogger.detail(listener, "Setting component property '" + key + "' to '" + value + "'");
                     compClient.setComponentProperty(componentName, key, value, false);
-                    listener.getLogger().println("Successfully set property");
                 } catch (IOException ex) {
                     throw new AbortException("Failed to set component property: " + ex.getMessage());
                 }
             }
+            listener.getLogger().println("Successfully set " + properties.size() + " component properties");
         }
 
         // add to application
         String application = envVars.expand(componentBlock.getComponentApplication());
         if (!application.isEmpty()) {
             // check for component
+            listener.getLogger().println("Checking the UCD server for existing component '" + componentName
+                    + "' in " + "application '" + application + "'");
             boolean componentExists = false;
-            try {
-                listener.getLogger().println("Checking the UCD server for existing component '" + componentName
-                        + "' in " + "application '" + application + "'");
-                JSONArray serverComponents = appClient.getApplicationComponents(application);
-                for (int i = 0; i < serverComponents.length(); i++) {
-                    JSONObject serverComponent = serverComponents.getJSONObject(i);
-                    String serverComponentName = serverComponent.getString("name");
-                    if (componentName.equals(serverComponentName)) {
-                        componentExists = true;
-                    }
-                }
-            } catch (IOException ex) {
-                throw new AbortException(
-                        "An error occurred while retrieving application components : " + ex.getMessage());
-            } catch (JSONException ex) {
-                throw new AbortException(
-                        "An error occurred while processing the JSON object for the application components: "
-                                + ex.getMessage());
+            Set<String> indexedComponents = serverUrl == null ? null
+                    : ApplicationComponentIndex.get(serverUrl, application);
+            if (indexedComponents != null) {
+                componentExists = indexedComponents.contains(componentName);
+            }
+
+            // an indexed miss may be stale, confirm it with the server before adding the component
+            if (!componentExists) {
+                componentExists = getApplicationComponentNames(application).contains(componentName);
             }
 
             if (componentExists) {
@@ -209,6 +215,9 @@ public class ComponentHelper {
                             .println("Adding component '" + componentName + "' to application '" + application + "'");
                     appClient.addComponentToApplication(application, componentName);
                     listener.getLogger().println("Successfully added component");
+                    if (serverUrl != null) {
+                        ApplicationComponentIndex.add(serverUrl, application, componentName);
+                    }
                 } catch (IOException ex) {
                     throw new AbortException(
                             "An error occurred while adding the component to the application : " + ex.getMessage());
@@ -217,6 +226,36 @@ public class ComponentHelper {
         }
     }
 
+    /**
+     * Download the names of all components in an application and refresh the index
+     *
+     * @param application The name of the application
+     * @return The names of the components in the application
+     * @throws AbortException
+     */
+    private Set<String> getApplicationComponentNames(String application) throws AbortException {
+        Set<String> componentNames = new HashSet<String>();
+        try {
+            JSONArray serverComponents = appClient.getApplicationComponents(application);
+            for (int i = 0; i < serverComponents.length(); i++) {
+                JSONObject serverComponent = serverComponents.getJSONObject(i);
+                componentNames.add(serverComponent.getString("name"));
+            }
+        } catch (IOException ex) {
+            throw new AbortException(
+                    "An error occurred while retrieving application components : " + ex.getMessage());
+        } catch (JSONException ex) {
+            throw new AbortException(
+                    "An error occurred while processing the JSON object for the application components: "
+                            + ex.getMessage());
+        }
+
+        if (serverUrl != null) {
+            ApplicationComponentIndex.put(serverUrl, application, componentNames);
+        }
+        return componentNames;
+    }
+
     public void addTag(String name, String tag) throws AbortException {
         try {
             compClient.addTagToComponent(name, tag);
@@ -0,0 +1,167 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+
+/**
+ * This class makes http clients safe to share between the worker threads that
+ * run independent REST calls concurrently. A build step acquires the client it
+ * uses and releases it when it ends, and a pooled copy of a client is shut
+ * down once no running step uses it.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class ConcurrentClients {
+    public static final int MAX_CONNECTIONS_PER_ROUTE = 8;
+
+    private static final Map<DefaultHttpClient, Pooled> POOLED = new WeakHashMap<DefaultHttpClient, Pooled>();
+
+    private ConcurrentClients() {}
+
+    /**
+     * Get a client that can run requests from several threads at once. Clients
+     * that already use a pooling connection manager get their pool widened,
+     * other clients are copied once onto a pooling connection manager keeping
+     * their credentials, parameters and interceptors.
+     *
+     * @param client The client created for the UCD site
+     * @return A thread safe client with the same configuration
+     */
+    public static DefaultHttpClient threadSafe(DefaultHttpClient client) {
+        synchronized (POOLED) {
+            return pooled(client).client;
+        }
+    }
+
+    /**
+     * Get a thread safe client for the duration of a build step, which must call
+     * {@link #release(DefaultHttpClient)} with the same client when it ends
+     *
+     * @param client The client created for the UCD site
+     * @return A thread safe client with the same configuration
+     */
+    public static DefaultHttpClient acquire(DefaultHttpClient client) {
+        synchronized (POOLED) {
+            Pooled pooled = pooled(client);
+            pooled.steps++;
+            return pooled.client;
+        }
+    }
+
+    /**
+     * End the use of a client by a build step, shutting down the connections of its
+     * pooled copy if no other step uses it
+     *
+     * @param client The client passed to {@link #acquire(DefaultHttpClient)}
+     */
+    public static void release(DefaultHttpClient client) {
+        DefaultHttpClient copy = null;
+        synchronized (POOLED) {
+            Pooled pooled = POOLED.get(client);
+            if (pooled == null) {
+                return;
+            }
+            pooled.steps--;
+            // clients pooled already belong to whoever created them
+            if (pooled.steps <= 0 && pooled.client != client) {
+                POOLED.remove(client);
+                copy = pooled.client;
+            }
+        }
+        if (copy != null) {
+            copy.getConnectionManager().shutdown();
+        }
+    }
+
+    private static Pooled pooled(DefaultHttpClient client) {
+        Pooled pooled = POOLED.get(client);
+        if (pooled != null) {
+            return pooled;
+        }
+
+        DefaultHttpClient threadSafe;
+        ClientConnectionManager connManager = client.getConnectionManager();
+        if (connManager instanceof PoolingClientConnectionManager) {
+            widen((PoolingClientConnectionManager) connManager);
+            threadSafe = client;
+        }
+        else if (connManager instanceof ThreadSafeClientConnManager) {
+            widen((ThreadSafeClientConnManager) connManager);
+            threadSafe = client;
+        }
+        else {
+            threadSafe = copyPooled(client, connManager);
+        }
+
+        RestCallRecorder.install(threadSafe);
+        RestTrafficRecorder.install(threadSafe);
+        pooled = new Pooled(threadSafe);
+        POOLED.put(client, pooled);
+        return pooled;
+    }
+
+    private static void widen(PoolingClientConnectionManager pool) {
+        if (pool.getDefaultMaxPerRoute() < MAX_CONNECTIONS_PER_ROUTE) {
+            pool.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        }
+        if (pool.getMaxTotal() < MAX_CONNECTIONS_PER_ROUTE * 2) {
+            pool.setMaxTotal(MAX_CONNECTIONS_PER_ROUTE * 2);
+        }
+    }
+
+    private static void widen(ThreadSafeClientConnManager pool) {
+        if (pool.getDefaultMaxPerRoute() < MAX_CONNECTIONS_PER_ROUTE) {
+            pool.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        }
+        if (pool.getMaxTotal() < MAX_CONNECTIONS_PER_ROUTE * 2) {
+            pool.setMaxTotal(MAX_CONNECTIONS_PER_ROUTE * 2);
+        }
+    }
+
+    private static DefaultHttpClient copyPooled(DefaultHttpClient client, ClientConnectionManager connManager) {
+        PoolingClientConnectionManager pool = new PoolingClientConnectionManager(connManager.getSchemeRegistry());
+        widen(pool);
+
+        DefaultHttpClient copy = new DefaultHttpClient(pool, client.getParams());
+        copy.setCredentialsProvider(client.getCredentialsProvider());
+        copy.setCookieStore(client.getCookieStore());
+        copy.setHttpRequestRetryHandler(client.getHttpRequestRetryHandler());
+        copy.setRedirectStrategy(client.getRedirectStrategy());
+
+        // the copy starts with the default interceptors, which the original already holds
+        copy.clearRequestInterceptors();
+        for (int i = 0; i < client.getRequestInterceptorCount(); i++) {
+            copy.addRequestInterceptor(client.getRequestInterceptor(i));
+        }
+        copy.clearResponseInterceptors();
+        for (int i = 0; i < client.getResponseInterceptorCount(); i++) {
+            copy.addResponseInterceptor(client.getResponseInterceptor(i));
+        }
+
+        return copy;
+    }
+
+    /**
+     * The thread safe client of a site client and the number of running steps using it
+     */
+    private static class Pooled {
+        private DefaultHttpClient client;
+        private int steps;
+
+        private Pooled(DefaultHttpClient client) {
+            this.client = client;
+        }
+    }
+}
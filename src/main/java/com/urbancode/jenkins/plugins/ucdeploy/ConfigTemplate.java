@@ -0,0 +1,249 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class holds a multi-line configuration field, such as file patterns or
+ * properties, compiled once into lines and variable references, so a build
+ * only substitutes variables instead of parsing the text again. Lines without
+ * variables are split, trimmed and parsed as properties up front. Blank lines,
+ * literal or expanded, are skipped. Compiled templates are cached by their text,
+ * which is shared by every build of a job until its configuration changes,
+ * including on agents where the blocks arrive as new copies each build.
+ *
+ */
+public class ConfigTemplate {
+    // the variable syntax of EnvVars.expand
+    private static final Pattern VARIABLE = Pattern.compile("\\$([A-Za-z0-9_]+|\\{[A-Za-z0-9_.]+\\}|\\$)");
+    private static final int CACHE_SIZE = 512;
+    private static final ConfigTemplate EMPTY = new ConfigTemplate("");
+    private static final Map<String, ConfigTemplate> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, ConfigTemplate>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ConfigTemplate> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private List<Object> parts;
+    private List<Line> lines = new ArrayList<Line>();
+    private Map<String, String> literalProperties;
+    private String propertyError;
+
+    private ConfigTemplate(String text) {
+        this.parts = tokenize(text);
+
+        if (!text.isEmpty()) {
+            for (String line : text.split("\n")) {
+                lines.add(new Line(line));
+            }
+        }
+
+        // a template without variables parses to the same properties every time
+        if (parts == null) {
+            literalProperties = new HashMap<String, String>();
+            for (Line line : lines) {
+                if (line.trimmed.isEmpty()) {
+                    continue;
+                }
+                if (line.propName == null) {
+                    propertyError = missingDelimiter(line.text);
+                    break;
+                }
+                literalProperties.put(line.propName, line.propValue);
+            }
+        }
+    }
+
+    /**
+     * @param text The configured text, null for an empty field
+     * @return The compiled template of the text
+     */
+    public static ConfigTemplate of(String text) {
+        if (text == null || text.isEmpty()) {
+            return EMPTY;
+        }
+
+        ConfigTemplate template = CACHE.get(text);
+        if (template == null) {
+            template = new ConfigTemplate(text);
+            CACHE.put(text, template);
+        }
+        return template;
+    }
+
+    /**
+     * @return The trimmed non-empty lines of the substituted text, such as file patterns
+     */
+    public String[] expandList(EnvVars envVars) {
+        List<String> values = new ArrayList<String>();
+        for (Line line : lines) {
+            if (line.parts == null) {
+                if (!line.trimmed.isEmpty()) {
+                    values.add(line.trimmed);
+                }
+                continue;
+            }
+
+            for (String expanded : substitute(line.parts, envVars).split("\n")) {
+                if (expanded.trim().length() > 0) {
+                    values.add(expanded.trim());
+                }
+            }
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Substitute the variables and load the name=value lines of the text into a properties map
+     *
+     * @return A new map of the properties, empty if the text is blank once substituted
+     * @throws AbortException If a non-blank line doesn't contain a '=' delimiter
+     */
+    public Map<String, String> expandProperties(EnvVars envVars) throws AbortException {
+        if (literalProperties != null) {
+            if (propertyError != null) {
+                throw new AbortException(propertyError);
+            }
+            return new HashMap<String, String>(literalProperties);
+        }
+
+        Map<String, String> properties = new HashMap<String, String>();
+        for (Line line : lines) {
+            if (line.parts == null) {
+                if (line.trimmed.isEmpty()) {
+                    continue;
+                }
+                if (line.propName == null) {
+                    throw new AbortException(missingDelimiter(line.text));
+                }
+                properties.put(line.propName, line.propValue);
+                continue;
+            }
+
+            for (String expanded : substitute(line.parts, envVars).split("\n")) {
+                // a variable may expand to nothing
+                if (expanded.trim().isEmpty()) {
+                    continue;
+                }
+                String[] propDef = expanded.split("=", 2);
+                if (propDef.length < 2) {
+                    throw new AbortException(missingDelimiter(expanded));
+                }
+                properties.put(propDef[0].trim(), propDef[1].trim());
+            }
+        }
+        return properties;
+    }
+
+    private static String missingDelimiter(String line) {
+        return "Missing property delimiter '=' in property definition '" + line + "'";
+    }
+
+    /**
+     * Split text into literal strings and variable references
+     *
+     * @return The parts, or null if the text doesn't refer to any variable
+     */
+    private static List<Object> tokenize(String text) {
+        Matcher matcher = VARIABLE.matcher(text);
+        if (!matcher.find()) {
+            return null;
+        }
+
+        List<Object> parts = new ArrayList<Object>();
+        int end = 0;
+        do {
+            if (matcher.start() > end) {
+                parts.add(text.substring(end, matcher.start()));
+            }
+            parts.add(new Variable(matcher.group()));
+            end = matcher.end();
+        }
+        while (matcher.find());
+        if (end < text.length()) {
+            parts.add(text.substring(end));
+        }
+        return parts;
+    }
+
+    private static String substitute(List<Object> parts, EnvVars envVars) {
+        StringBuilder result = new StringBuilder();
+        for (Object part : parts) {
+            if (part instanceof Variable) {
+                result.append(((Variable)part).resolve(envVars));
+            }
+            else {
+                result.append((String)part);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * A line of the template with its literal value parsed up front
+     */
+    private static class Line {
+        private String text;
+        private List<Object> parts;
+        private String trimmed;
+        private String propName;
+        private String propValue;
+
+        private Line(String text) {
+            this.text = text;
+            this.parts = tokenize(text);
+            if (parts == null) {
+                trimmed = text.trim();
+                String[] propDef = text.split("=", 2);
+                if (propDef.length >= 2) {
+                    propName = propDef[0].trim();
+                    propValue = propDef[1].trim();
+                }
+            }
+        }
+    }
+
+    /**
+     * A reference to a variable, or the $$ escape of a dollar sign
+     */
+    private static class Variable {
+        private String raw;
+        private String name;
+
+        private Variable(String raw) {
+            this.raw = raw;
+            if (!raw.equals("$$")) {
+                name = raw.startsWith("${") ? raw.substring(2, raw.length() - 1) : raw.substring(1);
+            }
+        }
+
+        private String resolve(EnvVars envVars) {
+            if (name == null) {
+                return "$";
+            }
+            // unknown variables are left as they are
+            String value = envVars.get(name);
+            return value != null ? value : raw;
+        }
+    }
+}
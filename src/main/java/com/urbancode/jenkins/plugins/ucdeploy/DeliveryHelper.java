@@ -22,6 +22,7 @@ import java.util.Map;
 import java.util.Properties;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * This class provides the structure and function around deployment control in
@@ -98,6 +99,10 @@ public class DeliveryHelper implements Serializable {
         private String pushProperties;
         private String pushDescription;
         private Boolean pushIncremental;
+        private Boolean pushPlanOnly;
+        private String maxUploadFiles;
+        private String maxUploadSize;
+        private Boolean pushSkipIdentical;
 
         @DataBoundConstructor
         public Push(
@@ -204,7 +209,80 @@ public class DeliveryHelper implements Serializable {
             }
         }
 
-        
+        public Boolean getPushPlanOnly() {
+            if (pushPlanOnly != null) {
+                return pushPlanOnly;
+            }
+            else {
+                return false;
+            }
+        }
+
+        /**
+         * Only scan the base directory and report the planned upload, without
+         * creating anything on the UCD server
+         *
+         * @param pushPlanOnly
+         */
+        @DataBoundSetter
+        public void setPushPlanOnly(Boolean pushPlanOnly) {
+            this.pushPlanOnly = pushPlanOnly;
+        }
+
+        public String getMaxUploadFiles() {
+            if (maxUploadFiles != null) {
+                return maxUploadFiles;
+            }
+            else {
+                return "";
+            }
+        }
+
+        /**
+         * @param maxUploadFiles The maximum number of files to upload before failing, empty for no limit
+         */
+        @DataBoundSetter
+        public void setMaxUploadFiles(String maxUploadFiles) {
+            this.maxUploadFiles = maxUploadFiles;
+        }
+
+        public String getMaxUploadSize() {
+            if (maxUploadSize != null) {
+                return maxUploadSize;
+            }
+            else {
+                return "";
+            }
+        }
+
+        /**
+         * @param maxUploadSize The maximum total size in MB to upload before failing, empty for no limit
+         */
+        @DataBoundSetter
+        public void setMaxUploadSize(String maxUploadSize) {
+            this.maxUploadSize = maxUploadSize;
+        }
+
+        public Boolean getPushSkipIdentical() {
+            if (pushSkipIdentical != null) {
+                return pushSkipIdentical;
+            }
+            else {
+                return false;
+            }
+        }
+
+        /**
+         * Store a digest of the pushed files on the version, and skip the push when the
+         * version already exists with the same digest
+         *
+         * @param pushSkipIdentical
+         */
+        @DataBoundSetter
+        public void setPushSkipIdentical(Boolean pushSkipIdentical) {
+            this.pushSkipIdentical = pushSkipIdentical;
+        }
+
         @Extension
         public static final DeliveryDescriptor D = new DeliveryDescriptor(Push.class);
     }
@@ -214,6 +292,8 @@ public class DeliveryHelper implements Serializable {
         private String pullSourceType;
         private String pullSourceProperties;
         private Boolean pullIncremental;
+        private Boolean pullWait;
+        private String pullWaitTimeout;
 
         @DataBoundConstructor
         public Pull(
@@ -265,6 +345,42 @@ public class DeliveryHelper implements Serializable {
             }
         }
 
+        public Boolean getPullWait() {
+            if (pullWait != null) {
+                return pullWait;
+            }
+            else {
+                return false;
+            }
+        }
+
+        /**
+         * Wait for the import to create a new version before continuing the build
+         *
+         * @param pullWait
+         */
+        @DataBoundSetter
+        public void setPullWait(Boolean pullWait) {
+            this.pullWait = pullWait;
+        }
+
+        public String getPullWaitTimeout() {
+            if (pullWaitTimeout != null) {
+                return pullWaitTimeout;
+            }
+            else {
+                return "";
+            }
+        }
+
+        /**
+         * @param pullWaitTimeout The number of minutes to wait for the imported version
+         */
+        @DataBoundSetter
+        public void setPullWaitTimeout(String pullWaitTimeout) {
+            this.pullWaitTimeout = pullWaitTimeout;
+        }
+
         @Extension
         public static final DeliveryDescriptor D = new DeliveryDescriptor(Pull.class);
     }
@@ -30,11 +30,13 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -43,6 +45,7 @@ import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import com.urbancode.jenkins.plugins.ucdeploy.ProcessHelper;
 import com.urbancode.jenkins.plugins.ucdeploy.ProcessHelper.CreateProcessBlock;
@@ -60,15 +63,25 @@ import org.slf4j.LoggerFactory;
 @SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
 public class DeployHelper {
     public static final Logger log = LoggerFactory.getLogger(DeployHelper.class);
+    /** The deployment process finished successfully */
+    public static final String DEPLOYED = "DEPLOYED";
+    /** The deployment process was started without waiting for it to finish */
+    public static final String SUBMITTED = "SUBMITTED";
+    /** The environment already had the requested versions */
+    public static final String SKIPPED = "SKIPPED";
     private ApplicationClient appClient;
     private TaskListener listener;
     private EnvVars envVars;
     private URI ucdUrl;
     private boolean skipProps;
+    private RestHelper restHelper;
+    private boolean requestPropertiesChecked;
 
     public DeployHelper(URI ucdUrl, DefaultHttpClient httpClient, TaskListener listener, EnvVars envVars, boolean skipProps) {
         this.ucdUrl = ucdUrl;
+        httpClient = ConcurrentClients.threadSafe(httpClient);
     	appClient = new ApplicationClient(ucdUrl, httpClient);
+        restHelper = new RestHelper(ucdUrl, httpClient);
         this.listener = listener;
         this.envVars = envVars;
         this.skipProps = skipProps;
@@ -86,6 +99,9 @@ public class DeployHelper {
         private String deployReqProps;
         private String deployDesc;
         private Boolean deployOnlyChanged;
+        private Boolean skipIfDeployed;
+        private String coalesceWindow;
+        private Boolean lockEnvironment;
 
         @DataBoundConstructor
         public DeployBlock(
@@ -223,11 +239,69 @@ public class DeployHelper {
             }
         }
 
+        public Boolean getSkipIfDeployed() {
+            if (skipIfDeployed != null) {
+                return skipIfDeployed;
+            }
+            else {
+                return false;
+            }
+        }
+
+        /**
+         * Skip the deployment when the environment inventory already holds the requested versions
+         *
+         * @param skipIfDeployed
+         */
+        @DataBoundSetter
+        public void setSkipIfDeployed(Boolean skipIfDeployed) {
+            this.skipIfDeployed = skipIfDeployed;
+        }
+
+        public String getCoalesceWindow() {
+            if (coalesceWindow != null) {
+                return coalesceWindow;
+            }
+            else {
+                return "";
+            }
+        }
+
+        /**
+         * @param coalesceWindow The number of seconds to wait for newer deployment requests to the same
+         *                       environment before submitting this one
+         */
+        @DataBoundSetter
+        public void setCoalesceWindow(String coalesceWindow) {
+            this.coalesceWindow = coalesceWindow;
+        }
+
+        public Boolean getLockEnvironment() {
+            if (lockEnvironment != null) {
+                return lockEnvironment;
+            }
+            else {
+                return false;
+            }
+        }
+
+        /**
+         * Wait for deployments of other builds to the same environment to finish before requesting this one
+         *
+         * @param lockEnvironment
+         */
+        @DataBoundSetter
+        public void setLockEnvironment(Boolean lockEnvironment) {
+            this.lockEnvironment = lockEnvironment;
+        }
+
         public String getMethod(String uri) throws Exception{
             log.info("[UrbanCode Deploy] uri: " + uri);
             String result = "";
             HttpGet method = new HttpGet(uri);
             try {
+                RestCallRecorder.install(UCDeploySite.client);
+                RestTrafficRecorder.install(UCDeploySite.client);
                 HttpResponse response = UCDeploySite.client.execute(method);
                 int responseCode = response.getStatusLine().getStatusCode();
                 if (responseCode == 401) {
@@ -341,20 +415,44 @@ public class DeployHelper {
      * Deploys a version in IBM UrbanCode Deploys
      *
      * @param deployBlock The DeployBlock containing the structure of the deployment
+     * @return DEPLOYED, SUBMITTED if the wait was skipped or SKIPPED if the versions were already deployed
      * @throws JSONException
      * @throws IOException
      */
-    public void runDeployment(DeployBlock deployBlock) throws IOException, JSONException {
+    public String runDeployment(DeployBlock deployBlock) throws IOException, JSONException {
         String deployApp = envVars.expand(deployBlock.getDeployApp());
         String deployEnv = envVars.expand(deployBlock.getDeployEnv());
         String deployProc = envVars.expand(deployBlock.getDeployProc());
         Boolean skipWait = deployBlock.getSkipWait();
         String deployVersions = envVars.expand(deployBlock.getDeployVersions());
-        String deployReqProps = envVars.expand(deployBlock.getDeployReqProps());
         String deployDesc = envVars.expand(deployBlock.getDeployDesc());
         CreateSnapshotBlock createSnapshot = deployBlock.getCreateSnapshot();
         Boolean doCreateSnapshot = deployBlock.createSnapshotChecked();
-        Map<String, String> requestProperties = readProperties(deployReqProps);
+        Map<String, String> requestProperties = ConfigTemplate.of(deployBlock.getDeployReqProps()).expandProperties(envVars);
+
+        // required fields
+        if (deployApp.isEmpty()) {
+            throw new AbortException("Deploy Application is a required field for deployment.");
+        }
+        if (deployEnv.isEmpty()) {
+            throw new AbortException("Deploy Environment is a required field for deployment.");
+        }
+        if (deployProc.isEmpty()) {
+            throw new AbortException("Deploy Process is a required field for deployment.");
+        }
+
+        if (!deployVersions.toUpperCase().startsWith("SNAPSHOT=")) {
+            deployVersions = resolveVersionSelectors(deployVersions);
+        }
+
+        // verify everything the deployment needs before anything is created or changed
+        preflight(deployBlock, deployApp, deployEnv, deployProc, deployVersions, requestProperties);
+
+        if (deployBlock.getSkipIfDeployed() && isAlreadyDeployed(deployBlock, deployApp, deployEnv, deployProc, deployVersions)) {
+            listener.getLogger().println("The deployment result is SKIPPED. Environment '" + deployEnv + "' of application '" +
+                                         deployApp + "' already has the requested versions.");
+            return SKIPPED;
+        }
 
         CreateSnapshotComponentBlock createSnapshotComponent = deployBlock.getSnapshotComponent();
 
@@ -372,17 +470,6 @@ public class DeployHelper {
             createSnapshotWithComponentVersions(newSnapshotName, deployDesc, deployApp ,deployVersions);
         }
 
-        // required fields
-        if (deployApp.isEmpty()) {
-            throw new AbortException("Deploy Application is a required field for deployment.");
-        }
-        if (deployEnv.isEmpty()) {
-            throw new AbortException("Deploy Environment is a required field for deployment.");
-        }
-        if (deployProc.isEmpty()) {
-            throw new AbortException("Deploy Process is a required field for deployment.");
-        }
-        
         /*Commenting to support following :
            1. Operational component process which needs no version.
            2. Running application generic process 
@@ -445,6 +532,8 @@ public class DeployHelper {
                 compVersionMap.put(name, versions);
             }
 
+            int removed = 0;
+            int added = 0;
             for (Map.Entry<String, List<String>> entry : componentVersions.entrySet()) {
                 String component = entry.getKey();
                 JSONArray oldVersions = compVersionMap.get(component);
@@ -456,19 +545,23 @@ public class DeployHelper {
                         String oldVersionName = oldVersion.getString("name");
                         String oldVersionId = oldVersion.getString("id");
 
-                        listener.getLogger().println("Removing past version '" + oldVersionName +
+                        BuildLogger.detail(listener, "Removing past version '" + oldVersionName +
                                 "' of component '" + component + "' from snapshot.");
                         appClient.removeVersionFromSnapshot(snapshot, deployApp, oldVersionId, component);
+                        removed++;
                     }
                 }
 
                 /* Add each version for this component to the snapshot */
                 for (String version : entry.getValue()) {
-                    listener.getLogger().println("Adding component version '" + version +
+                    BuildLogger.detail(listener, "Adding component version '" + version +
                             "' of component '" + component + "' to snapshot.");
                     appClient.addVersionToSnapshot(snapshot, deployApp, version, component);
+                    added++;
                 }
             }
+            listener.getLogger().println("Updated snapshot '" + snapshot + "': removed " + removed +
+                    " past versions and added " + added + " versions.");
 
             listener.getLogger().println("Deploying SNAPSHOT '" + snapshot + "'");
         }
@@ -574,19 +667,23 @@ public class DeployHelper {
                 JSONArray array1 = new JSONArray(PropertyObject.getString("properties"));
                 listener.getLogger().println("********** isSkipProps value is " + skipProps);
                 if (skipProps == false) {
+                    int envCount = 0;
                     for(int i=0; i < array1.length(); i++)
                     {  
                         if(array1.getJSONObject(i).getString("secure") == "false"){
-                            listener.getLogger().println("Env : "+array1.getJSONObject(i).getString("name")+"="+array1.getJSONObject(i).getString("value"));
+                            BuildLogger.detail(listener, "Env : "+array1.getJSONObject(i).getString("name")+"="+array1.getJSONObject(i).getString("value"));
                             deployBlock.createGlobalEnvironmentVariables(array1.getJSONObject(i).getString("name"),array1.getJSONObject(i).getString("value"));
+                            envCount++;
                         }
                     }
+                    listener.getLogger().println("Set " + envCount + " environment variables from application properties");
                 }
             }
         }catch (Exception e) {
                 listener.getLogger().println(e);
         }
         listener.getLogger().println("End Application Property Fetching.");
+        return skipWait ? SUBMITTED : DEPLOYED;
     }
 
     private void createSnapshotWithComponentVersions(String snapshot, String deployDesc, String deployApp, String deployVersions) throws IOException {
@@ -624,16 +721,8 @@ public class DeployHelper {
     throws IOException, JSONException {
 
         // Confirm all application request properties are fulfilled (not done by UCD)
-        JSONArray unfilledProps = appClient.checkUnfilledApplicationProcessRequestProperties(application,
-                appProcess, snapshot, requestProperties);
-        if (unfilledProps.length() > 0) {
-            List<String> props = new ArrayList<String>();
-            for (int i = 0; i < unfilledProps.length(); i++) {
-                String propName = unfilledProps.getJSONObject(i).getString("name");
-                props.add(propName);
-            }
-            throw new AbortException("Required UrbanCode Deploy Application Process request properties were "
-                    + "not supplied: " + props.toString());
+        if (!requestPropertiesChecked) {
+            checkRequestProperties(application, appProcess, snapshot, requestProperties);
         }
 
         // Run the application process
@@ -648,6 +737,324 @@ public class DeployHelper {
         return appProcUUID;
     }
 
+    /**
+     * Confirm all application process request properties are supplied
+     *
+     * @throws AbortException If any required property is missing
+     */
+    private void checkRequestProperties(
+            String application,
+            String appProcess,
+            String snapshot,
+            Map<String, String> requestProperties)
+    throws IOException, JSONException {
+        JSONArray unfilledProps = appClient.checkUnfilledApplicationProcessRequestProperties(application,
+                appProcess, snapshot, requestProperties);
+        if (unfilledProps.length() > 0) {
+            List<String> props = new ArrayList<String>();
+            for (int i = 0; i < unfilledProps.length(); i++) {
+                String propName = unfilledProps.getJSONObject(i).getString("name");
+                props.add(propName);
+            }
+            throw new AbortException("Required UrbanCode Deploy Application Process request properties were "
+                    + "not supplied: " + props.toString());
+        }
+    }
+
+    /**
+     * Check concurrently that the application, environment, process, snapshot and component
+     * versions of a deployment exist and that its request properties are filled, failing
+     * with every problem found before anything is changed on the server
+     *
+     * @throws AbortException Listing every failed check
+     */
+    private void preflight(
+            DeployBlock deployBlock,
+            final String deployApp,
+            final String deployEnv,
+            final String deployProc,
+            String deployVersions,
+            final Map<String, String> requestProperties)
+    throws AbortException {
+        boolean createsProcess = deployBlock.createProcessChecked();
+        boolean createsSnapshot = deployBlock.createSnapshotChecked()
+                && deployBlock.getCreateSnapshot().getDeployWithSnapshot();
+        String snapshotName = "";
+        Map<String, List<String>> componentVersions = new HashMap<String, List<String>>();
+        if (deployVersions.toUpperCase().startsWith("SNAPSHOT=")) {
+            if (!createsSnapshot) {
+                snapshotName = deployVersions.replaceFirst("(?i)SNAPSHOT=", "").trim();
+            }
+        }
+        else {
+            componentVersions = readComponentVersions(deployVersions);
+        }
+        final String snapshot = snapshotName;
+
+        List<Callable<Void>> checks = new ArrayList<Callable<Void>>();
+        checks.add(existsCheck("Application '" + deployApp + "'", "/cli/application/info",
+                "application", deployApp));
+        checks.add(existsCheck("Environment '" + deployEnv + "' of application '" + deployApp + "'",
+                "/cli/environment/info", "application", deployApp, "environment", deployEnv));
+        if (!snapshot.isEmpty()) {
+            checks.add(existsCheck("Snapshot '" + snapshot + "' of application '" + deployApp + "'",
+                    "/cli/snapshot/getSnapshot", "application", deployApp, "snapshot", snapshot));
+        }
+        for (Map.Entry<String, List<String>> entry : componentVersions.entrySet()) {
+            for (String version : entry.getValue()) {
+                checks.add(existsCheck("Version '" + version + "' of component '" + entry.getKey() + "'",
+                        "/cli/version/getVersionId", "component", entry.getKey(), "version", version));
+            }
+        }
+
+        // a process created by this step can't be checked yet, deploy() checks its properties
+        if (!createsProcess) {
+            checks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    checkExists("Process '" + deployProc + "' of application '" + deployApp + "'",
+                            "/cli/applicationProcess/info", "application", deployApp, "applicationProcess", deployProc);
+                    checkRequestProperties(deployApp, deployProc, snapshot, requestProperties);
+                    return null;
+                }
+            });
+        }
+
+        listener.getLogger().println("Running " + checks.size() + " pre-deployment checks");
+        long start = System.currentTimeMillis();
+        ParallelTasks.runAll("pre-deployment checks", checks, ConcurrentClients.MAX_CONNECTIONS_PER_ROUTE);
+        listener.getLogger().println("Pre-deployment checks passed in " + (System.currentTimeMillis() - start) + " ms");
+        requestPropertiesChecked = !createsProcess && !createsSnapshot;
+    }
+
+    /**
+     * Compare the requested versions with the inventory of the environment, for a
+     * process that only installs versions
+     *
+     * @return True if every requested version is already in the environment
+     * @throws IOException
+     * @throws JSONException
+     */
+    private boolean isAlreadyDeployed(
+        DeployBlock deployBlock,
+        String deployApp,
+        String deployEnv,
+        String deployProc,
+        String deployVersions)
+    throws IOException, JSONException {
+        // a snapshot created by this step captures the environment, so it never changes anything
+        if (deployBlock.createSnapshotChecked() && deployBlock.getCreateSnapshot().getDeployWithSnapshot()) {
+            listener.getLogger().println("Skip If Deployed doesn't apply when deploying a newly created snapshot");
+            return false;
+        }
+
+        // the inventory only tells whether installing the versions would change anything, a process
+        // created by this step installs them, any other process is checked
+        if (!deployBlock.createProcessChecked() && !isInstallProcess(appClient.getApplicationProcess(deployApp, deployProc))) {
+            listener.getLogger().println("Skip If Deployed doesn't apply to process '" + deployProc + "', it runs " +
+                                         "component processes other than version installs");
+            return false;
+        }
+
+        Map<String, List<String>> requested;
+        if (deployVersions.toUpperCase().startsWith("SNAPSHOT=")) {
+            String snapshot = deployVersions.replaceFirst("(?i)SNAPSHOT=", "").trim();
+            requested = new HashMap<String, List<String>>();
+            JSONArray snapshotVersions = appClient.getSnapshotVersions(snapshot, deployApp);
+            for (int i = 0; i < snapshotVersions.length(); i++) {
+                JSONObject snapshotComponent = snapshotVersions.getJSONObject(i);
+                JSONArray versions = snapshotComponent.getJSONArray("desiredVersions");
+                List<String> versionNames = new ArrayList<String>();
+                for (int j = 0; j < versions.length(); j++) {
+                    versionNames.add(versions.getJSONObject(j).getString("name"));
+                }
+                if (!versionNames.isEmpty()) {
+                    requested.put(snapshotComponent.getString("name"), versionNames);
+                }
+            }
+        }
+        else {
+            requested = readComponentVersions(deployVersions);
+        }
+
+        // a process without versions always runs
+        if (requested.isEmpty()) {
+            return false;
+        }
+
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("application", deployApp);
+        query.put("environment", deployEnv);
+        JSONArray inventory = restHelper.getJSONArray("/cli/environment/latestDesiredInventory", query);
+        Map<String, Set<String>> deployed = new HashMap<String, Set<String>>();
+        for (int i = 0; i < inventory.length(); i++) {
+            JSONObject entry = inventory.getJSONObject(i);
+            JSONObject component = entry.optJSONObject("component");
+            JSONObject version = entry.optJSONObject("version");
+            if (component == null || version == null) {
+                continue;
+            }
+            Set<String> versions = deployed.get(component.optString("name"));
+            if (versions == null) {
+                versions = new HashSet<String>();
+                deployed.put(component.optString("name"), versions);
+            }
+            versions.add(version.optString("name"));
+        }
+
+        for (Map.Entry<String, List<String>> entry : requested.entrySet()) {
+            Set<String> versions = deployed.get(entry.getKey());
+            for (String version : entry.getValue()) {
+                if (versions == null || !versions.contains(version)) {
+                    listener.getLogger().println("Version '" + version + "' of component '" + entry.getKey() +
+                                                 "' isn't deployed to environment '" + deployEnv + "' yet");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether an application process only installs component versions, that is every
+     * component process it runs is in an install step comparing versions with the inventory
+     *
+     * @param process The application process
+     * @return True if the process runs component processes, all of them in install steps
+     * @throws JSONException
+     */
+    static boolean isInstallProcess(JSONObject process) throws JSONException {
+        JSONObject root = process == null ? null : process.optJSONObject("rootActivity");
+        if (root == null) {
+            return false;
+        }
+        int[] counts = new int[2];
+        countComponentProcesses(root, false, counts);
+        return counts[0] > 0 && counts[1] == 0;
+    }
+
+    /**
+     * Count the component processes under an activity, in counts[0] those under an
+     * inventory version diff and in counts[1] the others
+     */
+    private static void countComponentProcesses(JSONObject activity, boolean installed, int[] counts)
+    throws JSONException {
+        String type = activity.optString("type");
+        if ("componentProcess".equals(type)) {
+            counts[installed ? 0 : 1]++;
+        }
+        installed |= "inventoryVersionDiff".equals(type);
+
+        JSONArray children = activity.optJSONArray("children");
+        if (children != null) {
+            for (int i = 0; i < children.length(); i++) {
+                JSONObject child = children.optJSONObject(i);
+                if (child != null) {
+                    countComponentProcesses(child, installed, counts);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a check that fails if a GET request for an object doesn't succeed
+     *
+     * @param description The object checked, used in the failure message
+     * @param path The path of the endpoint returning the object
+     * @param query Alternating names and values of the query parameters
+     */
+    private Callable<Void> existsCheck(final String description, final String path, final String... query) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                checkExists(description, path, query);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Fail if a GET request for an object doesn't succeed, telling an object the server
+     * doesn't know from a request that failed for another reason
+     *
+     * @param description The object checked, used in the failure message
+     * @param path The path of the endpoint returning the object
+     * @param query Alternating names and values of the query parameters
+     * @throws AbortException
+     */
+    private void checkExists(String description, String path, String... query) throws AbortException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 0; i + 1 < query.length; i += 2) {
+            params.put(query[i], query[i + 1]);
+        }
+        try {
+            restHelper.get(path, params);
+        }
+        catch (RestHelper.StatusException ex) {
+            if (ex.getStatus() == 404 || ex.getStatus() == 400) {
+                throw new AbortException(description + " was not found: " + ex.getMessage());
+            }
+            throw new AbortException("Failed to check " + description + ": " + ex.getMessage());
+        }
+        catch (IOException ex) {
+            throw new AbortException("Failed to check " + description + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Replace the version selectors in newline separated component:version pairs with the
+     * names of the versions they select, resolving the selectors concurrently
+     *
+     * @param componentVersionsRaw
+     * @return The component:version pairs with version names only
+     * @throws AbortException
+     */
+    private String resolveVersionSelectors(String componentVersionsRaw) throws AbortException {
+        final List<String> lines = new ArrayList<String>();
+        List<Callable<Void>> resolutions = new ArrayList<Callable<Void>>();
+        for (String cvLine : componentVersionsRaw.split("\n")) {
+            final int index = lines.size();
+            lines.add(cvLine);
+            int delim = cvLine.indexOf(':');
+            if (delim <= 0) {
+                continue;
+            }
+
+            final String component = cvLine.substring(0, delim).trim();
+            final String selector = cvLine.substring(delim + 1).trim();
+            if (!VersionIndex.isSelector(selector)) {
+                continue;
+            }
+            resolutions.add(new Callable<Void>() {
+                @Override
+                public Void call() throws AbortException {
+                    String version = VersionIndex.resolve(restHelper, ucdUrl.toString(), component, selector);
+                    BuildLogger.detail(listener, "Resolved '" + selector + "' of component '" + component +
+                                                 "' to version '" + version + "'");
+                    synchronized (lines) {
+                        lines.set(index, component + ":" + version);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        if (resolutions.isEmpty()) {
+            return componentVersionsRaw;
+        }
+        ParallelTasks.runAll("version selectors", resolutions, ConcurrentClients.MAX_CONNECTIONS_PER_ROUTE);
+        listener.getLogger().println("Resolved " + resolutions.size() + " version selectors");
+
+        StringBuilder resolved = new StringBuilder();
+        for (String line : lines) {
+            if (resolved.length() > 0) {
+                resolved.append('\n');
+            }
+            resolved.append(line);
+        }
+        return resolved.toString();
+    }
+
     /**
      * Convert string of newline separated component:version to HashMap required by AppClient
      *
@@ -685,32 +1092,6 @@ public class DeployHelper {
         return componentVersions;
     }
 
-    /**
-     * Load properties into a properties map
-     *
-     * @param properties The unparsed properties to load
-     * @return The loaded properties map
-     * @throws AbortException
-     */
-    private Map<String, String> readProperties(String properties) throws AbortException {
-        Map<String, String> propertiesToSet = new HashMap<String, String>();
-        if (properties != null && properties.length() > 0) {
-            for (String line : properties.split("\n")) {
-                String[] propDef = line.split("=");
-
-                if (propDef.length >= 2) {
-                    String propName = propDef[0].trim();
-                    String propVal = propDef[1].trim();
-                    propertiesToSet.put(propName, propVal);
-                }
-                else {
-                    throw new AbortException("Missing property delimiter '=' in property definition '" + line + "'");
-                }
-            }
-        }
-        return propertiesToSet;
-    }
-
     /**
      * Check the result of an application process
      *
@@ -0,0 +1,211 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.model.Run;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class coordinates the deployments builds on the controller request of
+ * the same application environment. With coalescing, a deployment waits a
+ * short window before it is submitted, and gives way if a newer build of the
+ * same job requests a deployment to the same environment in the meantime.
+ * Builds are ordered by their number, so a build that is slow to reach its
+ * deployment never supersedes a newer one, it is superseded instead. With
+ * locking, deployments of an environment are submitted one at a time in the
+ * order builds asked for them.
+ *
+ */
+public class DeploymentCoordinator {
+    private static final Object LOCK = new Object();
+    // the newest request of each job and environment, kept after it closes so older builds still give way
+    private static final Map<String, Ticket> NEWEST = new HashMap<String, Ticket>();
+    private static final Map<String, Semaphore> LOCKS = new HashMap<String, Semaphore>();
+
+    private DeploymentCoordinator() {}
+
+    /**
+     * Register a deployment request. A pending request of an older build of the same job
+     * to the same environment is superseded, and a request of a build older than the
+     * newest one that asked is superseded right away.
+     *
+     * @param serverUrl The url of the UCD server
+     * @param application The name of the application
+     * @param environment The name of the environment
+     * @param build The build requesting the deployment
+     * @return The ticket of the request
+     */
+    public static Ticket register(String serverUrl, String application, String environment, Run<?, ?> build) {
+        String key = key(serverUrl, application, environment) + "|" + build.getParent().getFullName();
+        synchronized (LOCK) {
+            Ticket ticket = new Ticket(build.getNumber(), build.getFullDisplayName());
+            Ticket newest = NEWEST.get(key);
+            if (newest != null && newest.number > ticket.number) {
+                ticket.supersededBy = newest.owner;
+                return ticket;
+            }
+
+            NEWEST.put(key, ticket);
+            if (newest != null && !newest.submitted && !newest.closed) {
+                newest.supersededBy = ticket.owner;
+            }
+            LOCK.notifyAll();
+            return ticket;
+        }
+    }
+
+    /**
+     * Wait for the turn of a build to deploy to an environment. Builds are let through one
+     * at a time, first come first served.
+     *
+     * @param serverUrl The url of the UCD server
+     * @param application The name of the application
+     * @param environment The name of the environment
+     * @return The lock, which must be released once the deployment is over
+     * @throws InterruptedException
+     */
+    public static EnvironmentLock lock(String serverUrl, String application, String environment)
+    throws InterruptedException {
+        Semaphore semaphore;
+        synchronized (LOCK) {
+            String key = key(serverUrl, application, environment);
+            semaphore = LOCKS.get(key);
+            if (semaphore == null) {
+                semaphore = new Semaphore(1, true);
+                LOCKS.put(key, semaphore);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        int queued = semaphore.getQueueLength() + (semaphore.availablePermits() == 0 ? 1 : 0);
+        semaphore.acquire();
+        return new EnvironmentLock(semaphore, queued, System.currentTimeMillis() - start);
+    }
+
+    private static String key(String serverUrl, String application, String environment) {
+        return serverUrl + "|" + application + "|" + environment;
+    }
+
+    /**
+     * The turn of a build to deploy to an environment
+     */
+    public static class EnvironmentLock {
+        private Semaphore semaphore;
+        private int queued;
+        private long waitMillis;
+        private boolean released;
+
+        private EnvironmentLock(Semaphore semaphore, int queued, long waitMillis) {
+            this.semaphore = semaphore;
+            this.queued = queued;
+            this.waitMillis = waitMillis;
+        }
+
+        /**
+         * @return The number of deployments ahead of this one when it was queued
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return How long the build waited for its turn
+         */
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * A deployment request waiting to be submitted
+     */
+    public static class Ticket {
+        private int number;
+        private String owner;
+        private String supersededBy;
+        private boolean submitted;
+        private boolean closed;
+
+        private Ticket(int number, String owner) {
+            this.number = number;
+            this.owner = owner;
+        }
+
+        /**
+         * Wait for the coalescing window to pass, returning early if a newer request supersedes this one
+         *
+         * @param windowMillis How long to wait for newer requests
+         * @return True if the request is still the latest, false if it was superseded
+         * @throws InterruptedException
+         */
+        public boolean coalesce(long windowMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + windowMillis;
+            synchronized (LOCK) {
+                try {
+                    long remaining;
+                    while (supersededBy == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        LOCK.wait(remaining);
+                    }
+                }
+                catch (InterruptedException ex) {
+                    close();
+                    throw ex;
+                }
+                return supersededBy == null;
+            }
+        }
+
+        /**
+         * Mark the request as submitted, after which newer requests no longer supersede it
+         *
+         * @return True if the request may be submitted, false if it was superseded
+         */
+        public boolean submit() {
+            synchronized (LOCK) {
+                if (supersededBy != null || closed) {
+                    return false;
+                }
+                submitted = true;
+                return true;
+            }
+        }
+
+        /**
+         * @return The build whose newer request superseded this one, or null
+         */
+        public String getSupersededBy() {
+            synchronized (LOCK) {
+                return supersededBy;
+            }
+        }
+
+        /**
+         * End the request once the deployment is over, newer requests no longer supersede it
+         */
+        public void close() {
+            synchronized (LOCK) {
+                closed = true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return owner;
+        }
+    }
+}
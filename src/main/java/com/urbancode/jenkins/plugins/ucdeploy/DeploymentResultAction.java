@@ -0,0 +1,117 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * This class records how the deployments requested by a build were coordinated,
+ * shown in the build summary and exported through the remote API
+ *
+ */
+@ExportedBean
+public class DeploymentResultAction implements Action {
+    private List<Deployment> deployments = new ArrayList<Deployment>();
+
+    /**
+     * Add a deployment to a build, creating the action if necessary
+     *
+     * @param build The build that requested the deployment
+     * @param deployment The outcome of the request
+     */
+    public static synchronized void record(Run<?, ?> build, Deployment deployment) {
+        DeploymentResultAction action = build.getAction(DeploymentResultAction.class);
+        if (action == null) {
+            action = new DeploymentResultAction();
+            build.addAction(action);
+        }
+        action.deployments.add(deployment);
+    }
+
+    @Exported(inline = true)
+    public List<Deployment> getDeployments() {
+        return deployments;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "UrbanCode Deploy Deployments";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "ucdDeployments";
+    }
+
+    /**
+     * The outcome of one deployment request
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class Deployment {
+        private String application;
+        private String environment;
+        private String result;
+        private String detail;
+        private long queueMillis;
+
+        public Deployment(String application, String environment, String result, String detail) {
+            this(application, environment, result, detail, 0L);
+        }
+
+        /**
+         * @param queueMillis How long the build waited for its turn to deploy to the environment
+         */
+        public Deployment(String application, String environment, String result, String detail, long queueMillis) {
+            this.application = application;
+            this.environment = environment;
+            this.result = result;
+            this.detail = detail;
+            this.queueMillis = queueMillis;
+        }
+
+        @Exported
+        public String getApplication() {
+            return application;
+        }
+
+        @Exported
+        public String getEnvironment() {
+            return environment;
+        }
+
+        /**
+         * @return DEPLOYED, SUBMITTED, SKIPPED or SUPERSEDED
+         */
+        @Exported
+        public String getResult() {
+            return result;
+        }
+
+        @Exported
+        public String getDetail() {
+            return detail;
+        }
+
+        @Exported
+        public long getQueueMillis() {
+            return queueMillis;
+        }
+    }
+}
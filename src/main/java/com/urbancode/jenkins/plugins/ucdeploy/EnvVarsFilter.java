@@ -0,0 +1,88 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.EnvVars;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class reduces build environment variables to the ones referenced by the
+ * configuration blocks of a step, so only those are sent to agents
+ *
+ */
+public class EnvVarsFilter {
+    private static final Pattern REFERENCE = Pattern.compile("\\$(?:\\{([^}]+)\\}|([a-zA-Z0-9_]+))");
+    private static final String BLOCK_PACKAGE = EnvVarsFilter.class.getPackage().getName();
+
+    private EnvVarsFilter() {}
+
+    /**
+     * @param envVars The environment variables of the build
+     * @param blocks The configuration blocks whose string fields may reference variables
+     * @return The variables referenced by the blocks
+     */
+    public static EnvVars referenced(EnvVars envVars, Collection<?> blocks) {
+        Set<String> names = new HashSet<String>();
+        Map<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+        for (Object block : blocks) {
+            collect(block, names, visited);
+        }
+
+        EnvVars filtered = new EnvVars();
+        for (String name : names) {
+            String value = envVars.get(name);
+            if (value != null) {
+                filtered.put(name, value);
+            }
+        }
+        return filtered;
+    }
+
+    private static void collect(Object value, Set<String> names, Map<Object, Boolean> visited) {
+        if (value == null || visited.put(value, Boolean.TRUE) != null) {
+            return;
+        }
+
+        if (value instanceof String) {
+            Matcher matcher = REFERENCE.matcher((String) value);
+            while (matcher.find()) {
+                names.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+            }
+        }
+        else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                collect(element, names, visited);
+            }
+        }
+        else if (value.getClass().getName().startsWith(BLOCK_PACKAGE)) {
+            for (Class<?> type = value.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        collect(field.get(value), names, visited);
+                    }
+                    catch (IllegalAccessException ex) {
+                        // not readable, the value can't reference anything we could send
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,601 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * This class walks a base artifact directory and collects the files matched by
+ * Ant style include and exclude patterns. The patterns are compiled once per
+ * scanner and excluded directories are pruned before they are descended into.
+ * Files and directories that can't be read are skipped and reported with the
+ * result instead of failing the scan.
+ *
+ */
+public class FileScanner {
+    private List<AntPattern> includes = new ArrayList<AntPattern>();
+    private List<AntPattern> excludes = new ArrayList<AntPattern>();
+    private List<Pattern> prunedDirs = new ArrayList<Pattern>();
+    private List<String> unreadable = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * @param includePatterns The patterns of files to include, all files if empty
+     * @param excludePatterns The patterns of files to exclude
+     */
+    public FileScanner(String[] includePatterns, String[] excludePatterns) {
+        if (includePatterns == null || includePatterns.length == 0) {
+            includes.add(new AntPattern("**"));
+        }
+        else {
+            for (String pattern : includePatterns) {
+                includes.add(new AntPattern(pattern));
+            }
+        }
+
+        if (excludePatterns != null) {
+            for (String pattern : excludePatterns) {
+                AntPattern exclude = new AntPattern(pattern);
+                excludes.add(exclude);
+
+                // a pattern ending in /** excludes the whole directory it names
+                Pattern dirPattern = exclude.getDirectoryPattern();
+                if (dirPattern != null) {
+                    prunedDirs.add(dirPattern);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collect every file under the base directory matching the patterns
+     *
+     * @param base The base directory to scan
+     * @param parallelism The number of threads to walk top level directories with
+     * @return The matched files, sorted by relative path
+     * @throws AbortException
+     */
+    public ScanResult scan(File base, int parallelism) throws AbortException {
+        final Path basePath = base.toPath();
+        List<ScannedFile> files = new ArrayList<ScannedFile>();
+        unreadable.clear();
+
+        try {
+            if (parallelism <= 1) {
+                walk(basePath, basePath, files, null, false);
+            }
+            else {
+                files.addAll(scanParallel(basePath, parallelism));
+            }
+        }
+        catch (IOException ex) {
+            throw new AbortException("Failed to scan base artifact directory " + base.getAbsolutePath() + ": "
+                    + ex.getMessage());
+        }
+
+        Collections.sort(files, new Comparator<ScannedFile>() {
+            @Override
+            public int compare(ScannedFile a, ScannedFile b) {
+                return a.getPath().compareTo(b.getPath());
+            }
+        });
+
+        List<String> skipped;
+        synchronized (unreadable) {
+            skipped = new ArrayList<String>(unreadable);
+        }
+        return new ScanResult(files, skipped);
+    }
+
+    /**
+     * Count the files under the base directory matching the patterns and add up
+     * their sizes, without keeping a list of them
+     *
+     * @param base The base directory to scan
+     * @return The number and combined size of the matched files
+     * @throws AbortException
+     */
+    public ScanTotals count(File base) throws AbortException {
+        Path basePath = base.toPath();
+        ScanTotals totals = new ScanTotals();
+        unreadable.clear();
+
+        try {
+            walk(basePath, basePath, null, totals, false);
+        }
+        catch (IOException ex) {
+            throw new AbortException("Failed to scan base artifact directory " + base.getAbsolutePath() + ": "
+                    + ex.getMessage());
+        }
+
+        synchronized (unreadable) {
+            totals.unreadable = new ArrayList<String>(unreadable);
+        }
+        return totals;
+    }
+
+    /**
+     * Check whether at least one file under the base directory matches the
+     * patterns, stopping at the first match
+     *
+     * @param base The base directory to scan
+     * @return True if any file matches
+     * @throws AbortException
+     */
+    public boolean hasMatch(File base) throws AbortException {
+        Path basePath = base.toPath();
+        List<ScannedFile> files = new ArrayList<ScannedFile>();
+
+        try {
+            walk(basePath, basePath, files, null, true);
+        }
+        catch (IOException ex) {
+            throw new AbortException("Failed to scan base artifact directory " + base.getAbsolutePath() + ": "
+                    + ex.getMessage());
+        }
+
+        return !files.isEmpty();
+    }
+
+    /**
+     * Walk the direct children of the base directory in the calling thread and
+     * hand each subdirectory off to a worker thread
+     */
+    private List<ScannedFile> scanParallel(final Path basePath, int parallelism) throws IOException {
+        List<ScannedFile> files = new ArrayList<ScannedFile>();
+        List<Path> subDirs = new ArrayList<Path>();
+
+        DirectoryStream<Path> children = Files.newDirectoryStream(basePath);
+        try {
+            for (Path child : children) {
+                String relative = relativize(basePath, child);
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                }
+                catch (IOException ex) {
+                    skip(relative, ex);
+                    continue;
+                }
+
+                if (attrs.isDirectory()) {
+                    if (shouldDescend(relative)) {
+                        subDirs.add(child);
+                    }
+                }
+                else if (attrs.isRegularFile() && isIncluded(relative)) {
+                    files.add(new ScannedFile(relative, attrs.size()));
+                }
+            }
+        }
+        finally {
+            children.close();
+        }
+
+        if (subDirs.isEmpty()) {
+            return files;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, subDirs.size()));
+        try {
+            List<Future<List<ScannedFile>>> futures = new ArrayList<Future<List<ScannedFile>>>();
+            for (final Path subDir : subDirs) {
+                futures.add(executor.submit(new Callable<List<ScannedFile>>() {
+                    @Override
+                    public List<ScannedFile> call() throws IOException {
+                        List<ScannedFile> subFiles = new ArrayList<ScannedFile>();
+                        walk(basePath, subDir, subFiles, null, false);
+                        return subFiles;
+                    }
+                }));
+            }
+
+            for (Future<List<ScannedFile>> future : futures) {
+                try {
+                    files.addAll(future.get());
+                }
+                catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException(cause.getMessage(), cause);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while scanning " + basePath, ex);
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return files;
+    }
+
+    private void walk(final Path basePath, Path start, final List<ScannedFile> files, final ScanTotals totals,
+                      final boolean firstOnly)
+    throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(basePath)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                return shouldDescend(relativize(basePath, dir))
+                        ? FileVisitResult.CONTINUE
+                        : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    String relative = relativize(basePath, file);
+                    if (isIncluded(relative) && totals != null) {
+                        totals.add(attrs.size());
+                    }
+                    else if (isIncluded(relative)) {
+                        files.add(new ScannedFile(relative, attrs.size()));
+                        if (firstOnly) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                skip(relativize(basePath, file), ex);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) {
+                // a directory whose listing broke off is kept with the files read so far
+                if (ex != null) {
+                    skip(relativize(basePath, dir), ex);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void skip(String relative, IOException ex) {
+        unreadable.add(relative + " (" + ex.getClass().getSimpleName() + ": " + ex.getMessage() + ")");
+    }
+
+    private boolean shouldDescend(String relativeDir) {
+        for (Pattern pruned : prunedDirs) {
+            if (pruned.matcher(relativeDir).matches()) {
+                return false;
+            }
+        }
+
+        String[] segments = relativeDir.split("/");
+        for (AntPattern include : includes) {
+            if (include.couldMatchUnder(segments)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isIncluded(String relativeFile) {
+        boolean included = false;
+        for (AntPattern include : includes) {
+            if (include.matches(relativeFile)) {
+                included = true;
+                break;
+            }
+        }
+        if (!included) {
+            return false;
+        }
+
+        for (AntPattern exclude : excludes) {
+            if (exclude.matches(relativeFile)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String relativize(Path basePath, Path path) {
+        return basePath.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * A single Ant style pattern (supporting *, ? and **) compiled to a regular
+     * expression along with its per segment patterns
+     */
+    static class AntPattern {
+        private String[] tokens;
+        private Pattern[] tokenPatterns;
+        private Pattern pattern;
+
+        AntPattern(String antPattern) {
+            String normalized = antPattern.trim().replace('\\', '/');
+            while (normalized.startsWith("/")) {
+                normalized = normalized.substring(1);
+            }
+            if (normalized.isEmpty() || normalized.endsWith("/")) {
+                normalized = normalized + "**";
+            }
+
+            tokens = normalized.split("/+");
+            tokenPatterns = new Pattern[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                tokenPatterns[i] = "**".equals(tokens[i]) ? null : Pattern.compile(globToRegex(tokens[i]));
+            }
+            pattern = Pattern.compile(tokensToRegex(tokens, tokens.length));
+        }
+
+        boolean matches(String relativePath) {
+            return pattern.matcher(relativePath).matches();
+        }
+
+        /**
+         * @return The pattern of the directory named by a pattern ending in /**, or null
+         */
+        Pattern getDirectoryPattern() {
+            if (tokens.length > 1 && "**".equals(tokens[tokens.length - 1])) {
+                return Pattern.compile(tokensToRegex(tokens, tokens.length - 1));
+            }
+            return null;
+        }
+
+        /**
+         * Check whether a file below the given directory could match this pattern
+         *
+         * @param dirSegments The path segments of the directory relative to the base
+         * @return False only if no file below the directory can match
+         */
+        boolean couldMatchUnder(String[] dirSegments) {
+            for (int i = 0; i < dirSegments.length; i++) {
+                if (i >= tokens.length - 1) {
+                    // only the file name token is left, deeper directories cannot match
+                    return i < tokens.length && tokenPatterns[i] == null;
+                }
+                if (tokenPatterns[i] == null) {
+                    return true;
+                }
+                if (!tokenPatterns[i].matcher(dirSegments[i]).matches()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String tokensToRegex(String[] tokens, int count) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                boolean last = (i == count - 1);
+                if ("**".equals(tokens[i])) {
+                    regex.append(last ? ".*" : "(?:[^/]+/)*");
+                }
+                else {
+                    regex.append(globToRegex(tokens[i]));
+                    if (!last) {
+                        regex.append('/');
+                    }
+                }
+            }
+            return regex.toString();
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? "[^/]*" : "[^/]");
+                }
+                else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return regex.toString();
+        }
+    }
+
+    /**
+     * The number and combined size of the files matched by a count
+     */
+    public static class ScanTotals {
+        private int fileCount;
+        private long totalBytes;
+        private List<String> unreadable;
+
+        void add(long size) {
+            fileCount++;
+            totalBytes += size;
+        }
+
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @return The files and directories skipped because they couldn't be read, with the reason
+         */
+        public List<String> getUnreadable() {
+            return unreadable;
+        }
+    }
+
+    /**
+     * A file matched by the scanner
+     */
+    public static class ScannedFile implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private String path;
+        private long size;
+
+        public ScannedFile(String path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        /**
+         * @return The path of the file relative to the base directory, using '/' separators
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * The files matched by a scan and their combined size
+     */
+    public static class ScanResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private static final Comparator<ScannedFile> BY_SIZE = new Comparator<ScannedFile>() {
+            @Override
+            public int compare(ScannedFile a, ScannedFile b) {
+                return Long.compare(a.getSize(), b.getSize());
+            }
+        };
+        private List<ScannedFile> files;
+        private List<String> unreadable;
+        private long totalBytes;
+
+        public ScanResult(List<ScannedFile> files, List<String> unreadable) {
+            this.files = files;
+            this.unreadable = unreadable;
+            for (ScannedFile file : files) {
+                totalBytes += file.getSize();
+            }
+        }
+
+        public List<ScannedFile> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return The files and directories skipped because they couldn't be read, with the reason
+         */
+        public List<String> getUnreadable() {
+            return unreadable;
+        }
+
+        public int getFileCount() {
+            return files.size();
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @param count The number of files to return
+         * @return The largest matched files, largest first
+         */
+        public List<ScannedFile> getLargestFiles(int count) {
+            PriorityQueue<ScannedFile> largest = new PriorityQueue<ScannedFile>(count + 1, BY_SIZE);
+            for (ScannedFile file : files) {
+                largest.add(file);
+                if (largest.size() > count) {
+                    largest.poll();
+                }
+            }
+
+            List<ScannedFile> sorted = new ArrayList<ScannedFile>(largest);
+            Collections.sort(sorted, Collections.reverseOrder(BY_SIZE));
+            return sorted;
+        }
+
+        /**
+         * Compute a SHA-256 digest over the paths and contents of the matched files
+         *
+         * @param base The base directory the files were matched in
+         * @param settings Upload settings changing the uploaded content, included in the digest
+         * @return The digest as a hex string
+         * @throws IOException
+         */
+        public String getContentDigest(File base, String settings) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException ex) {
+                throw new IOException("SHA-256 is not available: " + ex.getMessage());
+            }
+
+            Charset utf8 = Charset.forName("UTF-8");
+            digest.update(settings.getBytes(utf8));
+            byte[] buffer = new byte[64 * 1024];
+            for (ScannedFile file : files) {
+                // the separators keep different splits of paths and contents from colliding
+                digest.update((byte) 0);
+                digest.update(file.getPath().getBytes(utf8));
+                digest.update((byte) 0);
+                digest.update(Long.toString(file.getSize()).getBytes(utf8));
+                digest.update((byte) 0);
+
+                InputStream in = Files.newInputStream(base.toPath().resolve(file.getPath()));
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+                finally {
+                    in.close();
+                }
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+}
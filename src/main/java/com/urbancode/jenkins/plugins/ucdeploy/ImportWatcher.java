@@ -0,0 +1,356 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * This class triggers a version import of a component and waits for it to
+ * finish. Servers that return a request id for the import are asked for the
+ * status of the request, so an import that fails or creates no version ends
+ * the wait right away. The newest versions existing before the import are
+ * recorded, then the newest page of versions is polled with a growing interval
+ * until a version not among them appears. The imports of several components
+ * can be waited for together.
+ *
+ */
+public class ImportWatcher {
+    private static final long FIRST_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final int PAGE_SIZE = 25;
+    private static final String STATUS_PATH = "/cli/component/checkVersionImportStatus";
+    private RestHelper restHelper;
+    private String component;
+    private long timeoutMillis;
+    private Set<String> knownVersionIds;
+    private long started;
+    private long finished;
+    private String requestId;
+    private boolean importDone;
+    private String failure;
+    private volatile String lastError;
+    private JSONObject version;
+
+    /**
+     * @param restHelper The helper to poll the server with
+     * @param component The name of the component being imported
+     * @param timeoutMillis How long to wait for the version
+     */
+    public ImportWatcher(RestHelper restHelper, String component, long timeoutMillis) {
+        this.restHelper = restHelper;
+        this.component = component;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Record the newest versions of the component, called before triggering the import
+     *
+     * @throws AbortException
+     */
+    public void start() throws AbortException {
+        knownVersionIds = new HashSet<String>();
+        JSONArray versions = getVersions();
+        for (int i = 0; i < versions.length(); i++) {
+            try {
+                knownVersionIds.add(versions.getJSONObject(i).getString("id"));
+            }
+            catch (JSONException ex) {
+                throw new AbortException("An error occurred while processing the versions of component '" + component +
+                                         "' : " + ex.getMessage());
+            }
+        }
+        started = System.currentTimeMillis();
+    }
+
+    /**
+     * Trigger the import, keeping the id of the import request if the server returns one
+     *
+     * @param properties The runtime properties of the import
+     * @throws IOException
+     * @throws JSONException
+     */
+    public void trigger(Map<String, String> properties) throws IOException, JSONException {
+        JSONObject request = new JSONObject();
+        request.put("component", component);
+        request.put("properties", new JSONObject(properties));
+        String response = restHelper.put("/cli/component/integrate", request.toString()).trim();
+
+        // older servers answer with an empty body
+        if (response.startsWith("{")) {
+            requestId = new JSONObject(response).optString("requestId", null);
+        }
+    }
+
+    /**
+     * Wait until the import has created a new version or finished without one
+     *
+     * @param listener The listener to report progress to
+     * @return The new version, the newest one if the import created several, or null if it created none
+     * @throws AbortException If the import failed or didn't finish before the timeout
+     * @throws InterruptedException
+     */
+    public JSONObject waitForVersion(TaskListener listener) throws AbortException, InterruptedException {
+        List<ImportWatcher> watchers = new ArrayList<ImportWatcher>();
+        watchers.add(this);
+        waitForAll(watchers, listener, 1);
+        return version;
+    }
+
+    /**
+     * Wait until the imports of several components have finished, polling the
+     * components still being imported together on one pool of threads. A poll
+     * that fails is retried until the timeout of its own import.
+     *
+     * @param watchers The watchers of the triggered imports
+     * @param listener The listener to report progress to
+     * @param parallelism The maximum number of components to poll at once
+     * @throws AbortException Listing every import that failed or timed out
+     * @throws InterruptedException
+     */
+    public static void waitForAll(List<ImportWatcher> watchers, TaskListener listener, int parallelism)
+    throws AbortException, InterruptedException {
+        List<ImportWatcher> pending = new ArrayList<ImportWatcher>(watchers);
+        List<String> failures = new ArrayList<String>();
+        long interval = FIRST_POLL_INTERVAL;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, watchers.size())));
+
+        try {
+            while (true) {
+                List<Callable<Boolean>> polls = new ArrayList<Callable<Boolean>>();
+                for (final ImportWatcher watcher : pending) {
+                    polls.add(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            try {
+                                boolean done = watcher.poll();
+                                watcher.lastError = null;
+                                return done;
+                            }
+                            catch (AbortException ex) {
+                                // an unreachable server may come back before the timeout
+                                watcher.lastError = ex.getMessage();
+                                return false;
+                            }
+                        }
+                    });
+                }
+
+                List<Boolean> found = ParallelTasks.runAll("import checks", polls, executor);
+
+                long nextPoll = Long.MAX_VALUE;
+                List<ImportWatcher> stillPending = new ArrayList<ImportWatcher>();
+                for (int i = 0; i < pending.size(); i++) {
+                    ImportWatcher watcher = pending.get(i);
+                    if (found.get(i)) {
+                        if (watcher.failure != null) {
+                            failures.add(watcher.failure);
+                        }
+                        continue;
+                    }
+
+                    long remaining = watcher.started + watcher.timeoutMillis - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        failures.add("The import of component '" + watcher.component + "' didn't finish within " +
+                                     TimeUnit.MILLISECONDS.toSeconds(watcher.timeoutMillis) + " seconds" +
+                                     (watcher.lastError != null ? ", last error: " + watcher.lastError : ""));
+                    }
+                    else {
+                        stillPending.add(watcher);
+                        nextPoll = Math.min(nextPoll, remaining);
+                    }
+                }
+
+                pending = stillPending;
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                for (ImportWatcher watcher : pending) {
+                    if (watcher.lastError != null) {
+                        listener.getLogger().println("[Warning] Checking the import of component '" + watcher.component +
+                                                     "' failed, retrying: " + watcher.lastError);
+                    }
+                }
+                if (pending.size() == 1) {
+                    listener.getLogger().println("Waiting for the import of component '" + pending.get(0).component + "' ("
+                                                 + pending.get(0).getDurationMillis() / 1000 + "s elapsed)");
+                }
+                else {
+                    listener.getLogger().println("Waiting for the imports of " + pending.size() + " components");
+                }
+                Thread.sleep(Math.min(interval, nextPoll));
+                interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        if (failures.size() == 1) {
+            throw new AbortException(failures.get(0));
+        }
+        else if (!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder();
+            message.append(failures.size()).append(" of ").append(watchers.size()).append(" imports failed:");
+            for (String failure : failures) {
+                message.append("\n    ").append(failure);
+            }
+            throw new AbortException(message.toString());
+        }
+    }
+
+    /**
+     * Check the import request and the component once
+     *
+     * @return True if the import has finished, with or without a new version, or failed
+     * @throws AbortException If the server couldn't be asked
+     */
+    public boolean poll() throws AbortException {
+        if (isFinished()) {
+            return true;
+        }
+
+        if (requestId != null) {
+            checkRequest();
+        }
+        if (failure == null) {
+            version = findNewVersion();
+        }
+        if (failure != null || version != null || importDone) {
+            finished = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the import created a version, finished without one or failed
+     */
+    public boolean isFinished() {
+        return finished > 0;
+    }
+
+    /**
+     * @return Why the import failed, or null
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return The imported version, or null if none has been found
+     */
+    public JSONObject getVersion() {
+        return version;
+    }
+
+    public String getComponent() {
+        return component;
+    }
+
+    /**
+     * @return The time since the import was triggered
+     */
+    public long getDurationMillis() {
+        return (finished > 0 ? finished : System.currentTimeMillis()) - started;
+    }
+
+    /**
+     * Ask the server for the status of the import request
+     */
+    private void checkRequest() throws AbortException {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("requestId", requestId);
+        JSONObject status;
+        try {
+            status = restHelper.getJSONObject(STATUS_PATH, query);
+        }
+        catch (RestHelper.StatusException ex) {
+            if (ex.getStatus() == 404) {
+                // the server can't report the status, only the versions tell
+                requestId = null;
+                return;
+            }
+            throw new AbortException("An error occurred while checking the import of component '" + component +
+                                     "' : " + ex.getMessage());
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred while checking the import of component '" + component +
+                                     "' : " + ex.getMessage());
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while processing the import status of component '" + component +
+                                     "' : " + ex.getMessage());
+        }
+
+        String state = status.optString("status").toUpperCase();
+        if (state.contains("FAIL") || state.contains("ERROR")) {
+            String message = status.optString("message", status.optString("error", ""));
+            failure = "The import of component '" + component + "' failed with status " + status.optString("status") +
+                      (message.isEmpty() ? "" : " : " + message);
+        }
+        else if (state.contains("SUCCE") || state.contains("COMPLETE") || state.contains("FINISH")) {
+            importDone = true;
+        }
+    }
+
+    private JSONObject findNewVersion() throws AbortException {
+        JSONArray versions = getVersions();
+        JSONObject newest = null;
+        for (int i = 0; i < versions.length(); i++) {
+            try {
+                JSONObject version = versions.getJSONObject(i);
+                if (!knownVersionIds.contains(version.getString("id"))
+                    && (newest == null || version.optLong("created") > newest.optLong("created")))
+                {
+                    newest = version;
+                }
+            }
+            catch (JSONException ex) {
+                throw new AbortException("An error occurred while processing the versions of component '" + component +
+                                         "' : " + ex.getMessage());
+            }
+        }
+        return newest;
+    }
+
+    private JSONArray getVersions() throws AbortException {
+        // the versions created by the import are among the newest
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("component", component);
+        query.put("numResults", String.valueOf(PAGE_SIZE));
+        try {
+            return restHelper.getJSONArray("/cli/component/versions", query);
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred while retrieving the versions of component '" + component +
+                                     "' : " + ex.getMessage());
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while processing the versions of component '" + component +
+                                     "' : " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class runs independent REST calls on a bounded pool of worker threads
+ * and reports all failures together once every task has finished
+ *
+ */
+public class ParallelTasks {
+
+    private ParallelTasks() {}
+
+    /**
+     * Run tasks concurrently and wait for all of them
+     *
+     * @param description What the tasks do, used in the error report
+     * @param tasks The tasks to run
+     * @param parallelism The maximum number of tasks to run at once
+     * @return The results of the tasks, in the order of the tasks
+     * @throws AbortException If any task failed, listing every failure
+     */
+    public static <T> List<T> runAll(String description, List<? extends Callable<T>> tasks, int parallelism)
+    throws AbortException {
+        List<T> results = new ArrayList<T>();
+        if (tasks.isEmpty()) {
+            return results;
+        }
+
+        // a single task doesn't need a thread of its own
+        if (tasks.size() == 1 || parallelism <= 1) {
+            List<String> failures = new ArrayList<String>();
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                }
+                catch (Exception ex) {
+                    results.add(null);
+                    failures.add(ex.getMessage());
+                }
+            }
+            checkFailures(description, failures, tasks.size());
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            return runAll(description, tasks, executor);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run tasks concurrently on an executor the caller reuses, and wait for all of them
+     *
+     * @param description What the tasks do, used in the error report
+     * @param tasks The tasks to run
+     * @param executor The executor to run the tasks on, left running
+     * @return The results of the tasks, in the order of the tasks
+     * @throws AbortException If any task failed, listing every failure
+     */
+    public static <T> List<T> runAll(String description, List<? extends Callable<T>> tasks, ExecutorService executor)
+    throws AbortException {
+        // calls made by the workers count for the build of the calling thread
+        RestCallRecorder recorder = RestCallRecorder.current();
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(recorder != null ? recorded(task, recorder) : task));
+        }
+
+        List<T> results = new ArrayList<T>();
+        List<String> failures = new ArrayList<String>();
+        try {
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                }
+                catch (ExecutionException ex) {
+                    results.add(null);
+                    failures.add(ex.getCause().getMessage());
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new AbortException("Interrupted while waiting for " + description);
+        }
+        checkFailures(description, failures, tasks.size());
+
+        return results;
+    }
+
+    private static <T> Callable<T> recorded(final Callable<T> task, final RestCallRecorder recorder) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                RestCallRecorder previous = recorder.attach();
+                try {
+                    return task.call();
+                }
+                finally {
+                    recorder.detach(previous);
+                }
+            }
+        };
+    }
+
+    private static void checkFailures(String description, List<String> failures, int total) throws AbortException {
+        if (failures.isEmpty()) {
+            return;
+        }
+        if (total == 1) {
+            throw new AbortException(failures.get(0));
+        }
+
+        StringBuilder message = new StringBuilder();
+        message.append(failures.size()).append(" of ").append(total).append(' ').append(description).append(" failed:");
+        for (String failure : failures) {
+            message.append("\n    ").append(failure);
+        }
+        throw new AbortException(message.toString());
+    }
+}
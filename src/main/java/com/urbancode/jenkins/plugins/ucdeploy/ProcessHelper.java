@@ -12,12 +12,17 @@ import hudson.EnvVars;
 import hudson.model.TaskListener;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import com.urbancode.ud.client.ApplicationClient;
 
@@ -28,6 +33,13 @@ import com.urbancode.ud.client.ApplicationClient;
  */
 @SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
 public class ProcessHelper {
+    // placeholders of the values filled in when the application process template is rendered
+    private static final String APPLICATION_PROCESS = "@@applicationProcess@@";
+    private static final String APPLICATION = "@@application@@";
+    private static final String DESCRIPTION = "@@description@@";
+    private static final String COMPONENT_PROCESS = "@@componentProcess@@";
+    private static final String UNIQUE_NAME = "@@uniqueName@@";
+    private static final List<String> TEMPLATE = compileAppProcTemplate();
     private ApplicationClient appClient;
     private TaskListener listener;
     private EnvVars envVars;
@@ -41,6 +53,7 @@ public class ProcessHelper {
 
     public static class CreateProcessBlock {
         private String processComponent;
+        private String additionalApplications;
 
         @DataBoundConstructor
         public CreateProcessBlock(String processComponent) {
@@ -50,6 +63,24 @@ public class ProcessHelper {
         public String getProcessComponent() {
             return processComponent;
         }
+
+        public String getAdditionalApplications() {
+            if (additionalApplications != null) {
+                return additionalApplications;
+            }
+            else {
+                return "";
+            }
+        }
+
+        /**
+         * @param additionalApplications Newline separated names of further applications to create
+         *                               the application process in
+         */
+        @DataBoundSetter
+        public void setAdditionalApplications(String additionalApplications) {
+            this.additionalApplications = additionalApplications;
+        }
     }
 
     /**
@@ -63,42 +94,216 @@ public class ProcessHelper {
                               String applicationProcess,
                               CreateProcessBlock processBlock)
     throws AbortException {
-        String description = this.description;
+        List<String> applications = new ArrayList<String>();
+        applications.add(application);
+        for (String additional : ConfigTemplate.of(processBlock.getAdditionalApplications()).expandList(envVars)) {
+            if (!applications.contains(additional)) {
+                applications.add(additional);
+            }
+        }
+        createProcesses(applications, applicationProcess, processBlock);
+    }
+
+    /**
+     * Create an application process in several applications of IBM UrbanCode Deploy, checking
+     * and creating the processes of the applications concurrently
+     *
+     * @param applications The names of the applications to add the process to
+     * @param applicationProcess The name of the application process to create
+     * @param processBlock The CreateProcessBlock containing the strucutre of the application process information
+     * @throws AbortException Listing every application the process couldn't be created in
+     */
+    public void createProcesses(List<String> applications,
+                                String applicationProcess,
+                                CreateProcessBlock processBlock)
+    throws AbortException {
         String componentProcess = envVars.expand(processBlock.getProcessComponent());
 
-        // check if application process already exists
-        JSONObject appProcObj = null;
-        try {
-            listener.getLogger().println("Checking the UCD server for existing application process '" + applicationProcess + "'");
-            appProcObj = appClient.getApplicationProcess(application, applicationProcess);
-            listener.getLogger().println("The application process already exists on the UCD server");
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (String application : applications) {
+            tasks.add(createProcessTask(application, applicationProcess, componentProcess));
         }
-        catch (IOException ex) {
-            listener.getLogger().println("The application process does not exist on the UCD server");
+        if (tasks.size() > 1) {
+            listener.getLogger().println("Creating application process '" + applicationProcess + "' in " +
+                                         tasks.size() + " applications");
         }
-        catch (JSONException ex) {
-            throw new AbortException("An error occurred while checking the UCD server for the application process : "
-                    + ex.getMessage());
+        ParallelTasks.runAll("application process creations", tasks, ConcurrentClients.MAX_CONNECTIONS_PER_ROUTE);
+    }
+
+    private Callable<Void> createProcessTask(
+        final String application,
+        final String applicationProcess,
+        final String componentProcess)
+    {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                // check if application process already exists
+                JSONObject appProcObj = null;
+                try {
+                    BuildLogger.detail(listener, "Checking the UCD server for existing application process '" +
+                                                 applicationProcess + "' of application '" + application + "'");
+                    appProcObj = appClient.getApplicationProcess(application, applicationProcess);
+                    listener.getLogger().println("The application process '" + applicationProcess + "' of application '" +
+                                                 application + "' already exists on the UCD server");
+                }
+                catch (IOException ex) {
+                    BuildLogger.detail(listener, "The application process does not exist in application '" +
+                                                 application + "'");
+                }
+                catch (JSONException ex) {
+                    throw new AbortException("An error occurred while checking the UCD server for the application process " +
+                                             "of application '" + application + "' : " + ex.getMessage());
+                }
+
+                if (appProcObj == null) {
+                    BuildLogger.detail(listener, "Creating new application process '" + applicationProcess +
+                                                 "' in application '" + application + "'");
+                    try {
+                        String applicationProcessJson = renderAppProcJson(
+                            applicationProcess,
+                            application,
+                            description,
+                            componentProcess);
+                        UUID appProcUUID = appClient.createApplicationProcess(applicationProcessJson);
+                        listener.getLogger().println("Successfully created the application process '" + applicationProcess +
+                                                     "' of application '" + application + "' with UUID '" + appProcUUID + "'");
+                    }
+                    catch (IOException ex) {
+                        throw new AbortException("An error occurred while creating a new application process in application '" +
+                                                 application + "': " + ex.getMessage());
+                    }
+                    catch (JSONException ex) {
+                        throw new AbortException("An error occurred while processing the JSON object for a new application " +
+                                                 "process : " + ex.getMessage());
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Render the JSON representation of an Application Process to pass to the ApplictionClient
+     * by streaming the values into the precompiled template
+     *
+     * @param applicationProcess The name of the new Application Process to create
+     * @param application The name of the application to create the Application Process in
+     * @param description The description to give the new application process
+     * @param componentProcess The component process to run in the new application process
+     * @return The string of the JSON representation of the new Application Process
+     */
+    private static String renderAppProcJson(
+        String applicationProcess,
+        String application,
+        String description,
+        String componentProcess)
+    {
+        StringBuilder json = new StringBuilder(2048);
+        for (int i = 0; i < TEMPLATE.size(); i++) {
+            String segment = TEMPLATE.get(i);
+            // literal JSON and placeholders alternate
+            if (i % 2 == 0) {
+                json.append(segment);
+            }
+            else if (segment.equals(APPLICATION_PROCESS)) {
+                appendQuoted(json, applicationProcess);
+            }
+            else if (segment.equals(APPLICATION)) {
+                appendQuoted(json, application);
+            }
+            else if (segment.equals(DESCRIPTION)) {
+                appendQuoted(json, description);
+            }
+            else if (segment.equals(COMPONENT_PROCESS)) {
+                appendQuoted(json, componentProcess);
+            }
+            else {
+                appendQuoted(json, uniqueName());
+            }
         }
+        return json.toString();
+    }
 
-        if (appProcObj == null) {
-            listener.getLogger().println("Creating new application process '" + applicationProcess + "'");
-            try {
-                String applicationProcessJson = constructAppProcJson(
-                    applicationProcess,
-                    application,
-                    description,
-                    componentProcess);
-                UUID appProcUUID = appClient.createApplicationProcess(applicationProcessJson);
-                listener.getLogger().println("Successfully created the application process with UUID '" + appProcUUID);
+    /**
+     * @return A name for a process element, unique like the dashless UUIDs the UCD editor uses
+     *         without drawing on the shared secure random generator
+     */
+    private static String uniqueName() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return String.format("%016x%016x", random.nextLong(), random.nextLong());
+    }
+
+    private static void appendQuoted(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                case '/':
+                    json.append(i > 0 && value.charAt(i - 1) == '<' ? "\\/" : "/");
+                    break;
+                default:
+                    if (c < ' ') {
+                        json.append(String.format("\\u%04x", (int)c));
+                    }
+                    else {
+                        json.append(c);
+                    }
             }
-            catch (IOException ex) {
-                throw new AbortException("An error occurred while creating a new application process: " + ex.getMessage());
+        }
+        json.append('"');
+    }
+
+    /**
+     * Compile the JSON representation of an Application Process into literal JSON
+     * segments alternating with the placeholders of the values of each process
+     *
+     * @return The segments, starting and ending with literal JSON
+     */
+    private static List<String> compileAppProcTemplate() {
+        String json;
+        try {
+            json = constructAppProcJson(APPLICATION_PROCESS, APPLICATION, DESCRIPTION, COMPONENT_PROCESS);
+        }
+        catch (AbortException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+
+        String[] placeholders = {APPLICATION_PROCESS, APPLICATION, DESCRIPTION, COMPONENT_PROCESS, UNIQUE_NAME};
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        while (true) {
+            int next = -1;
+            String placeholder = null;
+            for (String candidate : placeholders) {
+                int index = json.indexOf('"' + candidate + '"', start);
+                if (index >= 0 && (next < 0 || index < next)) {
+                    next = index;
+                    placeholder = candidate;
+                }
             }
-            catch (JSONException ex) {
-                throw new AbortException("An error occurred while processing the JSON object for a new application process : "
-                        + ex.getMessage());
+            if (next < 0) {
+                segments.add(json.substring(start));
+                return segments;
             }
+            segments.add(json.substring(start, next));
+            segments.add(placeholder);
+            start = next + placeholder.length() + 2;
         }
     }
 
@@ -113,7 +318,7 @@ public class ProcessHelper {
      * @return The string of the JSON representation of the new Application Process
      * @throws AbortException
      */
-    private String constructAppProcJson(
+    private static String constructAppProcJson(
         String applicationProcess,
         String application,
         String description,
@@ -181,7 +386,7 @@ public class ProcessHelper {
             // component environment iterator element
             JSONObject compEnvIt = new JSONObject();
             compEnvIt.put("type", "componentEnvironmentIterator");
-            compEnvIt.put("name", UUID.randomUUID().toString().replaceAll("-", ""));
+            compEnvIt.put("name", UNIQUE_NAME);
             compEnvIt.put("tagId", "");
             compEnvIt.put("runOnlyOnFirst", "false");
 
@@ -189,7 +394,7 @@ public class ProcessHelper {
             JSONObject invVerDiff = new JSONObject();
             invVerDiff.put("type", "inventoryVersionDiff");
             invVerDiff.put("status", "Active");
-            invVerDiff.put("name", UUID.randomUUID().toString().replaceAll("-", ""));
+            invVerDiff.put("name", UNIQUE_NAME);
 
             // component process
             JSONObject compProc = new JSONObject();
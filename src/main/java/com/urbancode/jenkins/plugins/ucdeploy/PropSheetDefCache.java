@@ -0,0 +1,113 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class caches the component version prop sheet definition of each
+ * component along with the names of its property definitions, so builds don't
+ * download and scan them again for every push
+ *
+ */
+public class PropSheetDefCache {
+    private static final long TTL = TimeUnit.MINUTES.toMillis(30);
+    private static final ConcurrentMap<String, PropSheetDef> CACHE = new ConcurrentHashMap<String, PropSheetDef>();
+    private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+    private PropSheetDefCache() {}
+
+    /**
+     * @param serverUrl The url of the UCD server
+     * @param component The name of the component
+     * @return The cached prop sheet definition, or null if it isn't cached or has expired
+     */
+    public static PropSheetDef get(String serverUrl, String component) {
+        String key = key(serverUrl, component);
+        PropSheetDef propSheetDef = CACHE.get(key);
+
+        if (propSheetDef != null && System.currentTimeMillis() - propSheetDef.loaded > TTL) {
+            CACHE.remove(key, propSheetDef);
+            return null;
+        }
+        return propSheetDef;
+    }
+
+    public static PropSheetDef put(String serverUrl, String component, String id, String path,
+            Collection<String> propNames) {
+        PropSheetDef propSheetDef = new PropSheetDef(id, path, propNames);
+        CACHE.put(key(serverUrl, component), propSheetDef);
+        return propSheetDef;
+    }
+
+    /**
+     * Drop the cached definition, used when it no longer matches the server
+     */
+    public static void invalidate(String serverUrl, String component) {
+        CACHE.remove(key(serverUrl, component));
+    }
+
+    /**
+     * @return The lock to hold while changing the property definitions of a component's
+     *         version prop sheet definition
+     */
+    public static Object getLock(String serverUrl, String component) {
+        String key = key(serverUrl, component);
+        Object lock = LOCKS.get(key);
+        if (lock == null) {
+            LOCKS.putIfAbsent(key, new Object());
+            lock = LOCKS.get(key);
+        }
+        return lock;
+    }
+
+    private static String key(String serverUrl, String component) {
+        return serverUrl + "|" + component;
+    }
+
+    /**
+     * A component version prop sheet definition with an index of its property definition names
+     */
+    public static class PropSheetDef {
+        private String id;
+        private String path;
+        private Set<String> propNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private long loaded;
+
+        private PropSheetDef(String id, String path, Collection<String> propNames) {
+            this.id = id;
+            this.path = path;
+            this.propNames.addAll(propNames);
+            this.loaded = System.currentTimeMillis();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean hasPropDef(String propName) {
+            return propNames.contains(propName);
+        }
+
+        /**
+         * Record a property definition created by the plugin
+         */
+        public void addPropDef(String propName) {
+            propNames.add(propName);
+        }
+    }
+}
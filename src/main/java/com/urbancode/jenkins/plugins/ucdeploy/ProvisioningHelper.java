@@ -0,0 +1,459 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.urbancode.ud.client.ApplicationClient;
+import com.urbancode.ud.client.ComponentClient;
+
+/**
+ * This class provisions the components declared in a JSON manifest. The
+ * manifest is compared with the server in a few bulk reads and only the
+ * missing components, properties, tags and application memberships are
+ * created, concurrently.
+ *
+ * <pre>
+ * {
+ *   "components": [
+ *     {
+ *       "name": "Orders",
+ *       "description": "Orders service",
+ *       "template": "Microservice",
+ *       "sourceConfigPlugin": "",
+ *       "incremental": false,
+ *       "sourceProperties": { "FileSystemComponentProperties/basePath": "/builds/orders" },
+ *       "properties": { "port": "8080" },
+ *       "tags": [ "service" ],
+ *       "applications": [ "Shop" ]
+ *     }
+ *   ]
+ * }
+ * </pre>
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class ProvisioningHelper {
+    private static final int PROVISION_THREADS = ConcurrentClients.MAX_CONNECTIONS_PER_ROUTE;
+    private ApplicationClient appClient;
+    private ComponentClient compClient;
+    private RestHelper restHelper;
+    private TaskListener listener;
+    private String serverUrl;
+
+    public ProvisioningHelper(URI ucdUrl, DefaultHttpClient httpClient, TaskListener listener) {
+        httpClient = ConcurrentClients.threadSafe(httpClient);
+        appClient = new ApplicationClient(ucdUrl, httpClient);
+        compClient = new ComponentClient(ucdUrl, httpClient);
+        restHelper = new RestHelper(ucdUrl, httpClient);
+        this.listener = listener;
+        this.serverUrl = ucdUrl.toString();
+    }
+
+    /**
+     * Provision the components declared in a manifest
+     *
+     * @param manifest The JSON manifest
+     * @param envVars The variables to expand in the string values of the manifest
+     * @throws AbortException
+     */
+    public void provision(String manifest, EnvVars envVars) throws AbortException {
+        List<ComponentSpec> specs = parseManifest(manifest, envVars);
+        listener.getLogger().println("Provisioning " + specs.size() + " components from the manifest");
+
+        // read the server state in bulk
+        Set<String> serverComponents = getServerComponentNames();
+        Map<String, Set<String>> applicationMembers = getApplicationMembers(specs);
+        Map<String, ComponentState> componentStates = getComponentStates(specs, serverComponents);
+
+        // work out the missing pieces
+        List<Callable<Void>> creates = new ArrayList<Callable<Void>>();
+        List<Callable<Void>> updates = new ArrayList<Callable<Void>>();
+        int propertyCount = 0;
+        int tagCount = 0;
+        int linkCount = 0;
+        for (ComponentSpec spec : specs) {
+            ComponentState state = componentStates.get(spec.name);
+            if (!serverComponents.contains(spec.name)) {
+                creates.add(createComponent(spec));
+                state = new ComponentState();
+            }
+
+            for (Map.Entry<String, String> property : spec.properties.entrySet()) {
+                if (!property.getValue().equals(state.properties.get(property.getKey()))) {
+                    updates.add(setProperty(spec.name, property.getKey(), property.getValue()));
+                    propertyCount++;
+                }
+            }
+            for (String tag : spec.tags) {
+                if (!state.tags.contains(tag)) {
+                    updates.add(addTag(spec.name, tag));
+                    tagCount++;
+                }
+            }
+            for (String application : spec.applications) {
+                if (!applicationMembers.get(application).contains(spec.name)) {
+                    updates.add(addToApplication(spec.name, application));
+                    linkCount++;
+                }
+            }
+        }
+
+        listener.getLogger().println("Provisioning plan: " + creates.size() + " components to create, " + propertyCount +
+                                     " properties to set, " + tagCount + " tags to add, " + linkCount +
+                                     " application memberships to add");
+
+        // properties, tags and memberships need the components to exist
+        ParallelTasks.runAll("component creations", creates, PROVISION_THREADS);
+        ParallelTasks.runAll("component updates", updates, PROVISION_THREADS);
+        listener.getLogger().println("Successfully provisioned " + specs.size() + " components");
+    }
+
+    /**
+     * Parse a provisioning manifest
+     *
+     * @param manifest The JSON manifest
+     * @param envVars The variables to expand in the string values of the manifest
+     * @return The declared components
+     * @throws AbortException
+     */
+    private List<ComponentSpec> parseManifest(String manifest, EnvVars envVars) throws AbortException {
+        List<ComponentSpec> specs = new ArrayList<ComponentSpec>();
+        Set<String> names = new HashSet<String>();
+        try {
+            // values are expanded after parsing, so a variable holding quotes can't break the JSON
+            JSONObject parsed = (JSONObject) expand(new JSONObject(manifest), envVars);
+            JSONArray components = parsed.getJSONArray("components");
+            for (int i = 0; i < components.length(); i++) {
+                ComponentSpec spec = new ComponentSpec(components.getJSONObject(i));
+                if (spec.name.isEmpty()) {
+                    throw new AbortException("Component " + (i + 1) + " of the manifest has no name");
+                }
+                if (!names.add(spec.name)) {
+                    throw new AbortException("Component '" + spec.name + "' is declared more than once in the manifest");
+                }
+                specs.add(spec);
+            }
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while parsing the provisioning manifest: " + ex.getMessage());
+        }
+        return specs;
+    }
+
+    /**
+     * Expand the variables in every string value of a parsed JSON value
+     */
+    private static Object expand(Object value, EnvVars envVars) throws JSONException {
+        if (value instanceof String) {
+            return envVars.expand((String) value);
+        }
+        else if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            Iterator<?> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                json.put(key, expand(json.get(key), envVars));
+            }
+        }
+        else if (value instanceof JSONArray) {
+            JSONArray json = (JSONArray) value;
+            for (int i = 0; i < json.length(); i++) {
+                json.put(i, expand(json.get(i), envVars));
+            }
+        }
+        return value;
+    }
+
+    private Set<String> getServerComponentNames() throws AbortException {
+        Set<String> names = new HashSet<String>();
+        try {
+            JSONArray components = restHelper.getJSONArray("/cli/component", new HashMap<String, String>());
+            for (int i = 0; i < components.length(); i++) {
+                names.add(components.getJSONObject(i).getString("name"));
+            }
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred while retrieving the components: " + ex.getMessage());
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while processing the JSON object for the components: " +
+                                     ex.getMessage());
+        }
+        return names;
+    }
+
+    /**
+     * Get the components of every application named in the manifest, one read per application.
+     * The index is only trusted when it lists every declared component, a miss may be stale.
+     */
+    private Map<String, Set<String>> getApplicationMembers(List<ComponentSpec> specs) throws AbortException {
+        Map<String, Set<String>> declared = new LinkedHashMap<String, Set<String>>();
+        for (ComponentSpec spec : specs) {
+            for (String application : spec.applications) {
+                if (!declared.containsKey(application)) {
+                    declared.put(application, new HashSet<String>());
+                }
+                declared.get(application).add(spec.name);
+            }
+        }
+
+        final List<String> applicationList = new ArrayList<String>(declared.keySet());
+        List<Callable<Set<String>>> reads = new ArrayList<Callable<Set<String>>>();
+        for (final String application : applicationList) {
+            final Set<String> declaredComponents = declared.get(application);
+            reads.add(new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() throws AbortException {
+                    Set<String> indexed = ApplicationComponentIndex.get(serverUrl, application);
+                    if (indexed != null && indexed.containsAll(declaredComponents)) {
+                        return new HashSet<String>(indexed);
+                    }
+
+                    Set<String> members = new HashSet<String>();
+                    try {
+                        JSONArray components = appClient.getApplicationComponents(application);
+                        for (int i = 0; i < components.length(); i++) {
+                            members.add(components.getJSONObject(i).getString("name"));
+                        }
+                    }
+                    catch (IOException ex) {
+                        throw new AbortException("An error occurred while retrieving the components of application '" +
+                                                 application + "' : " + ex.getMessage());
+                    }
+                    catch (JSONException ex) {
+                        throw new AbortException("An error occurred while processing the components of application '" +
+                                                 application + "' : " + ex.getMessage());
+                    }
+                    ApplicationComponentIndex.put(serverUrl, application, members);
+                    return members;
+                }
+            });
+        }
+
+        List<Set<String>> results = ParallelTasks.runAll("application reads", reads, PROVISION_THREADS);
+        Map<String, Set<String>> members = new HashMap<String, Set<String>>();
+        for (int i = 0; i < applicationList.size(); i++) {
+            members.put(applicationList.get(i), results.get(i));
+        }
+        return members;
+    }
+
+    /**
+     * Get the properties and tags of the existing components that declare any
+     */
+    private Map<String, ComponentState> getComponentStates(List<ComponentSpec> specs, Set<String> serverComponents)
+    throws AbortException {
+        final List<String> names = new ArrayList<String>();
+        List<Callable<ComponentState>> reads = new ArrayList<Callable<ComponentState>>();
+        for (final ComponentSpec spec : specs) {
+            if (!serverComponents.contains(spec.name) || (spec.properties.isEmpty() && spec.tags.isEmpty())) {
+                continue;
+            }
+            names.add(spec.name);
+            reads.add(new Callable<ComponentState>() {
+                @Override
+                public ComponentState call() throws AbortException {
+                    return readComponentState(spec);
+                }
+            });
+        }
+
+        List<ComponentState> results = ParallelTasks.runAll("component reads", reads, PROVISION_THREADS);
+        Map<String, ComponentState> states = new HashMap<String, ComponentState>();
+        for (int i = 0; i < names.size(); i++) {
+            states.put(names.get(i), results.get(i));
+        }
+        for (ComponentSpec spec : specs) {
+            if (!states.containsKey(spec.name)) {
+                states.put(spec.name, new ComponentState());
+            }
+        }
+        return states;
+    }
+
+    private ComponentState readComponentState(ComponentSpec spec) throws AbortException {
+        ComponentState state = new ComponentState();
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("component", spec.name);
+        try {
+            if (!spec.properties.isEmpty()) {
+                JSONArray properties = restHelper.getJSONArray("/cli/component/getProperties", query);
+                for (int i = 0; i < properties.length(); i++) {
+                    JSONObject property = properties.getJSONObject(i);
+                    state.properties.put(property.getString("name"), property.optString("value"));
+                }
+            }
+            if (!spec.tags.isEmpty()) {
+                JSONArray tags = restHelper.getJSONObject("/cli/component/info", query).optJSONArray("tags");
+                for (int i = 0; tags != null && i < tags.length(); i++) {
+                    state.tags.add(tags.getJSONObject(i).getString("name"));
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred while retrieving component '" + spec.name + "' : " +
+                                     ex.getMessage());
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while processing the JSON object for component '" + spec.name +
+                                     "' : " + ex.getMessage());
+        }
+        return state;
+    }
+
+    private Callable<Void> createComponent(final ComponentSpec spec) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                try {
+                    BuildLogger.detail(listener, "Creating new component '" + spec.name + "'");
+                    compClient.createComponent(spec.name, spec.description, spec.sourceConfigPlugin,
+                            spec.incremental ? "INCREMENTAL" : "FULL", spec.template, -1, false, true,
+                            spec.sourceProperties);
+                }
+                catch (IOException ex) {
+                    throw new AbortException("Failed to create component '" + spec.name + "': " + ex.getMessage());
+                }
+                catch (JSONException ex) {
+                    throw new AbortException("An error occurred while processing the JSON object for new component '" +
+                                             spec.name + "': " + ex.getMessage());
+                }
+                return null;
+            }
+        };
+    }
+
+    private Callable<Void> setProperty(final String component, final String name, final String value) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                try {
+                    BuildLogger.detail(listener, "Setting property '" + name + "' of component '" + component + "'");
+                    compClient.setComponentProperty(component, name, value, false);
+                }
+                catch (IOException ex) {
+                    throw new AbortException("Failed to set property '" + name + "' of component '" + component +
+                                             "': " + ex.getMessage());
+                }
+                return null;
+            }
+        };
+    }
+
+    private Callable<Void> addTag(final String component, final String tag) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                try {
+                    BuildLogger.detail(listener, "Adding tag '" + tag + "' to component '" + component + "'");
+                    compClient.addTagToComponent(component, tag);
+                }
+                catch (IOException ex) {
+                    throw new AbortException("Failed to tag component '" + component + "': " + ex.getMessage());
+                }
+                return null;
+            }
+        };
+    }
+
+    private Callable<Void> addToApplication(final String component, final String application) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                try {
+                    BuildLogger.detail(listener, "Adding component '" + component + "' to application '" +
+                                                 application + "'");
+                    appClient.addComponentToApplication(application, component);
+                    ApplicationComponentIndex.add(serverUrl, application, component);
+                }
+                catch (IOException ex) {
+                    throw new AbortException("Failed to add component '" + component + "' to application '" +
+                                             application + "': " + ex.getMessage());
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * A component declared in the manifest
+     */
+    private static class ComponentSpec {
+        private String name;
+        private String description;
+        private String template;
+        private String sourceConfigPlugin;
+        private boolean incremental;
+        private Map<String, String> sourceProperties;
+        private Map<String, String> properties;
+        private List<String> tags;
+        private List<String> applications;
+
+        private ComponentSpec(JSONObject json) throws JSONException {
+            name = json.optString("name").trim();
+            description = json.optString("description", "Created from Jenkins");
+            template = json.optString("template");
+            sourceConfigPlugin = json.optString("sourceConfigPlugin");
+            incremental = json.optBoolean("incremental");
+            sourceProperties = toMap(json.optJSONObject("sourceProperties"));
+            properties = toMap(json.optJSONObject("properties"));
+            tags = toList(json.optJSONArray("tags"));
+            applications = toList(json.optJSONArray("applications"));
+        }
+
+        private static Map<String, String> toMap(JSONObject json) throws JSONException {
+            Map<String, String> map = new LinkedHashMap<String, String>();
+            if (json != null) {
+                JSONArray names = json.names();
+                for (int i = 0; names != null && i < names.length(); i++) {
+                    String key = names.getString(i);
+                    map.put(key, json.getString(key));
+                }
+            }
+            return map;
+        }
+
+        private static List<String> toList(JSONArray json) throws JSONException {
+            List<String> list = new ArrayList<String>();
+            if (json != null) {
+                for (int i = 0; i < json.length(); i++) {
+                    list.add(json.getString(i));
+                }
+            }
+            return list;
+        }
+    }
+
+    /**
+     * The properties and tags of a component on the server
+     */
+    private static class ComponentState {
+        private Map<String, String> properties = new HashMap<String, String>();
+        private Set<String> tags = new HashSet<String>();
+    }
+}
@@ -0,0 +1,384 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * This class accounts for the REST calls a build makes to UCD: the number of
+ * calls, bytes sent and received and latency per endpoint. Calls are counted by
+ * interceptors on the http clients, which only count calls made by a thread
+ * that has a recorder attached. The recorder of a push on an agent is sent back
+ * and merged into the recorder of the build.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class RestCallRecorder implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final ThreadLocal<RestCallRecorder> ACTIVE = new ThreadLocal<RestCallRecorder>();
+    private static final String CALL_ATTRIBUTE = RestCallRecorder.class.getName() + ".call";
+    private static final Pattern UUID_PATTERN =
+            Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    private static final Pattern NUMBER_SEGMENT = Pattern.compile("(?<=/|\\.)[0-9]+(?=/|$)");
+
+    private Map<String, EndpointStats> endpoints = new HashMap<String, EndpointStats>();
+
+    /**
+     * Add the accounting interceptors to a client, if they aren't there already
+     *
+     * @param client The client making REST calls
+     */
+    public static void install(DefaultHttpClient client) {
+        synchronized (client) {
+            for (int i = 0; i < client.getRequestInterceptorCount(); i++) {
+                if (client.getRequestInterceptor(i) instanceof RequestAccounting) {
+                    return;
+                }
+            }
+            client.addRequestInterceptor(new RequestAccounting());
+            client.addResponseInterceptor(new ResponseAccounting());
+        }
+    }
+
+    /**
+     * @return The recorder attached to the current thread, or null
+     */
+    public static RestCallRecorder current() {
+        return ACTIVE.get();
+    }
+
+    /**
+     * Count the calls of the current thread with this recorder
+     *
+     * @return The recorder attached before, to restore with detach
+     */
+    public RestCallRecorder attach() {
+        RestCallRecorder previous = ACTIVE.get();
+        ACTIVE.set(this);
+        return previous;
+    }
+
+    /**
+     * Stop counting the calls of the current thread with this recorder
+     *
+     * @param previous The recorder attached before, or null
+     */
+    public void detach(RestCallRecorder previous) {
+        if (previous == null) {
+            ACTIVE.remove();
+        }
+        else {
+            ACTIVE.set(previous);
+        }
+    }
+
+    /**
+     * Add the calls counted by another recorder, such as the recorder of a push on an agent
+     */
+    public synchronized void merge(RestCallRecorder other) {
+        if (other == null || other == this) {
+            return;
+        }
+        for (EndpointStats stats : other.getEndpoints()) {
+            stats(stats.endpoint).add(stats);
+        }
+    }
+
+    /**
+     * @return The statistics of every endpoint called, the most called first
+     */
+    public synchronized List<EndpointStats> getEndpoints() {
+        List<EndpointStats> stats = new ArrayList<EndpointStats>();
+        for (EndpointStats endpoint : endpoints.values()) {
+            stats.add(endpoint.copy());
+        }
+        Collections.sort(stats, new Comparator<EndpointStats>() {
+            @Override
+            public int compare(EndpointStats s1, EndpointStats s2) {
+                return s1.count < s2.count ? 1 : (s1.count > s2.count ? -1 : s1.endpoint.compareTo(s2.endpoint));
+            }
+        });
+        return stats;
+    }
+
+    public synchronized boolean isEmpty() {
+        return endpoints.isEmpty();
+    }
+
+    private synchronized void recordCall(String endpoint, long millis, boolean failed) {
+        EndpointStats stats = stats(endpoint);
+        stats.count++;
+        stats.totalMillis += millis;
+        stats.maxMillis = Math.max(stats.maxMillis, millis);
+        if (failed) {
+            stats.errors++;
+        }
+    }
+
+    private synchronized void recordBytesOut(String endpoint, long bytes) {
+        stats(endpoint).bytesOut += bytes;
+    }
+
+    private synchronized void recordBytesIn(String endpoint, long bytes) {
+        stats(endpoint).bytesIn += bytes;
+    }
+
+    private EndpointStats stats(String endpoint) {
+        EndpointStats stats = endpoints.get(endpoint);
+        if (stats == null) {
+            stats = new EndpointStats(endpoint);
+            endpoints.put(endpoint, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Reduce a request to its method and path, with ids replaced so calls for different
+     * objects of the same endpoint are counted together
+     */
+    static String endpoint(HttpRequest request) {
+        String uri = request.getRequestLine().getUri();
+        String path;
+        try {
+            path = new URI(uri).getRawPath();
+        }
+        catch (URISyntaxException ex) {
+            int query = uri.indexOf('?');
+            path = query < 0 ? uri : uri.substring(0, query);
+        }
+        if (path == null || path.isEmpty()) {
+            path = "/";
+        }
+        path = UUID_PATTERN.matcher(path).replaceAll("{id}");
+        path = NUMBER_SEGMENT.matcher(path).replaceAll("{n}");
+        return request.getRequestLine().getMethod() + " " + path;
+    }
+
+    /**
+     * The REST calls made to one endpoint
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class EndpointStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private String endpoint;
+        private long count;
+        private long errors;
+        private long bytesOut;
+        private long bytesIn;
+        private long totalMillis;
+        private long maxMillis;
+
+        private EndpointStats(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        private void add(EndpointStats other) {
+            count += other.count;
+            errors += other.errors;
+            bytesOut += other.bytesOut;
+            bytesIn += other.bytesIn;
+            totalMillis += other.totalMillis;
+            maxMillis = Math.max(maxMillis, other.maxMillis);
+        }
+
+        private EndpointStats copy() {
+            EndpointStats copy = new EndpointStats(endpoint);
+            copy.add(this);
+            return copy;
+        }
+
+        @Exported
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        @Exported
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The number of calls answered with an error status
+         */
+        @Exported
+        public long getErrors() {
+            return errors;
+        }
+
+        @Exported
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        @Exported
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * @return The total time until the responses arrived
+         */
+        @Exported
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        @Exported
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Exported
+        public long getAverageMillis() {
+            return count > 0 ? totalMillis / count : 0;
+        }
+    }
+
+    /**
+     * A call in flight, kept in the http context between the interceptors
+     */
+    private static class Call {
+        private RestCallRecorder recorder;
+        private String endpoint;
+        private long start;
+
+        private Call(RestCallRecorder recorder, String endpoint, long start) {
+            this.recorder = recorder;
+            this.endpoint = endpoint;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Starts the accounting of a call and counts the bytes of its body
+     */
+    private static class RequestAccounting implements HttpRequestInterceptor {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            final RestCallRecorder recorder = current();
+            if (recorder == null) {
+                return;
+            }
+
+            final Call call = new Call(recorder, endpoint(request), System.currentTimeMillis());
+            context.setAttribute(CALL_ATTRIBUTE, call);
+
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+                if (entityRequest.getEntity() != null) {
+                    entityRequest.setEntity(new HttpEntityWrapper(entityRequest.getEntity()) {
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            wrappedEntity.writeTo(new FilterOutputStream(out) {
+                                @Override
+                                public void write(int b) throws IOException {
+                                    out.write(b);
+                                    recorder.recordBytesOut(call.endpoint, 1);
+                                }
+
+                                @Override
+                                public void write(byte[] b, int off, int len) throws IOException {
+                                    out.write(b, off, len);
+                                    recorder.recordBytesOut(call.endpoint, len);
+                                }
+                            });
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the latency and status of a call and counts the bytes of the response
+     * as they are read
+     */
+    private static class ResponseAccounting implements HttpResponseInterceptor {
+        @Override
+        public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+            final Call call = (Call) context.getAttribute(CALL_ATTRIBUTE);
+            if (call == null) {
+                return;
+            }
+            context.removeAttribute(CALL_ATTRIBUTE);
+
+            call.recorder.recordCall(call.endpoint, System.currentTimeMillis() - call.start,
+                    response.getStatusLine().getStatusCode() >= 400);
+
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                response.setEntity(new HttpEntityWrapper(entity) {
+                    @Override
+                    public InputStream getContent() throws IOException {
+                        return new FilterInputStream(wrappedEntity.getContent()) {
+                            @Override
+                            public int read() throws IOException {
+                                int b = super.read();
+                                if (b >= 0) {
+                                    call.recorder.recordBytesIn(call.endpoint, 1);
+                                }
+                                return b;
+                            }
+
+                            @Override
+                            public int read(byte[] b, int off, int len) throws IOException {
+                                int count = super.read(b, off, len);
+                                if (count > 0) {
+                                    call.recorder.recordBytesIn(call.endpoint, count);
+                                }
+                                return count;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        InputStream in = getContent();
+                        try {
+                            byte[] buffer = new byte[8192];
+                            int count;
+                            while ((count = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, count);
+                            }
+                        }
+                        finally {
+                            in.close();
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
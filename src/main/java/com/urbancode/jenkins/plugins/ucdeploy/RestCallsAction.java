@@ -0,0 +1,88 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.urbancode.jenkins.plugins.ucdeploy.RestCallRecorder.EndpointStats;
+
+/**
+ * This class shows the REST calls a build made to UCD per endpoint, as a
+ * sortable table on the build page and through the remote API
+ *
+ */
+@ExportedBean
+public class RestCallsAction implements Action {
+    private RestCallRecorder calls = new RestCallRecorder();
+
+    /**
+     * Add the calls of a build step to a build, creating the action if necessary
+     *
+     * @param build The build that made the calls
+     * @param recorder The recorder of the build step
+     */
+    public static synchronized void record(Run<?, ?> build, RestCallRecorder recorder) {
+        if (recorder.isEmpty()) {
+            return;
+        }
+        RestCallsAction action = build.getAction(RestCallsAction.class);
+        if (action == null) {
+            action = new RestCallsAction();
+            build.addAction(action);
+        }
+        action.calls.merge(recorder);
+    }
+
+    @Exported(inline = true)
+    public List<EndpointStats> getEndpoints() {
+        return calls.getEndpoints();
+    }
+
+    @Exported
+    public long getTotalCount() {
+        long total = 0;
+        for (EndpointStats stats : calls.getEndpoints()) {
+            total += stats.getCount();
+        }
+        return total;
+    }
+
+    @Exported
+    public long getTotalBytes() {
+        long total = 0;
+        for (EndpointStats stats : calls.getEndpoints()) {
+            total += stats.getBytesIn() + stats.getBytesOut();
+        }
+        return total;
+    }
+
+    public String formatBytes(long bytes) {
+        return UploadMonitor.formatBytes(bytes);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "UrbanCode Deploy REST Calls";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "ucdRestCalls";
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+
+import javax.ws.rs.core.UriBuilder;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class runs REST requests against the UCD server for the endpoints
+ * the uDeployRestClient doesn't cover
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class RestHelper {
+    public static final Logger log = LoggerFactory.getLogger(RestHelper.class);
+    private URI ucdUrl;
+    private DefaultHttpClient httpClient;
+
+    public RestHelper(URI ucdUrl, DefaultHttpClient httpClient) {
+        this.ucdUrl = ucdUrl;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Run a GET request
+     *
+     * @param path The path of the endpoint, relative to the server url
+     * @param query The query parameters of the request
+     * @return The body of the response
+     * @throws IOException If the request fails or the server doesn't respond with 200
+     */
+    public String get(String path, Map<String, String> query) throws IOException {
+        UriBuilder builder = UriBuilder.fromUri(ucdUrl).path(path);
+        for (Map.Entry<String, String> param : query.entrySet()) {
+            builder.queryParam(param.getKey(), param.getValue());
+        }
+        URI uri = builder.build();
+
+        log.info("[UrbanCode Deploy] uri: " + uri);
+        return execute(new HttpGet(uri), uri);
+    }
+
+    /**
+     * Run a PUT request with a JSON body
+     *
+     * @param path The path of the endpoint, relative to the server url
+     * @param json The body of the request
+     * @return The body of the response
+     * @throws IOException If the request fails or the server doesn't respond with 200
+     */
+    public String put(String path, String json) throws IOException {
+        URI uri = UriBuilder.fromUri(ucdUrl).path(path).build();
+
+        log.info("[UrbanCode Deploy] uri: " + uri);
+        HttpPut method = new HttpPut(uri);
+        method.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+        return execute(method, uri);
+    }
+
+    private String execute(HttpRequestBase method, URI uri) throws IOException {
+        try {
+            HttpResponse response = httpClient.execute(method);
+            int responseCode = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            String body = entity != null ? EntityUtils.toString(entity) : "";
+
+            if (responseCode == 401) {
+                throw new StatusException(responseCode, "Error connecting to IBM UrbanCode Deploy: Invalid user and/or password");
+            }
+            else if (responseCode != 200) {
+                throw new StatusException(responseCode, "Error connecting to IBM UrbanCode Deploy: " + responseCode +
+                                          " using URI: " + uri + (body.isEmpty() ? "" : " : " + body));
+            }
+            return body;
+        }
+        finally {
+            method.releaseConnection();
+        }
+    }
+
+    public JSONObject getJSONObject(String path, Map<String, String> query) throws IOException, JSONException {
+        return new JSONObject(get(path, query));
+    }
+
+    public JSONArray getJSONArray(String path, Map<String, String> query) throws IOException, JSONException {
+        return new JSONArray(get(path, query));
+    }
+
+    /**
+     * The server answered a request with an error status
+     */
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private int status;
+
+        public StatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.model.TaskListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class records the REST exchanges with UCD into fixture files that the
+ * tests serve back from a local server, so flows can be checked without a UCD
+ * server. Recording is off unless the system property
+ * com.urbancode.jenkins.plugins.ucdeploy.RestTrafficRecorder.dir names the
+ * directory to write the fixtures to, on the controller and on any agent
+ * whose pushes should be recorded. Credentials are not recorded and the
+ * values of secure properties are masked, other property values are written
+ * as returned. Response bodies over 1 MB, such as downloads, are left out.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class RestTrafficRecorder {
+    public static final Logger log = LoggerFactory.getLogger(RestTrafficRecorder.class);
+    public static final String DIR_PROPERTY = RestTrafficRecorder.class.getName() + ".dir";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_REQUEST_BODY = 64 * 1024;
+    private static final int MAX_RESPONSE_BODY = 1024 * 1024;
+    private static final String MASK = "****";
+    private static final String EXCHANGE_ATTRIBUTE = RestTrafficRecorder.class.getName() + ".exchange";
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private RestTrafficRecorder() {}
+
+    /**
+     * Add the recording interceptors to a client if recording is enabled and they
+     * aren't there already. The request interceptor runs before any other.
+     *
+     * @param client The client making REST calls
+     */
+    public static void install(DefaultHttpClient client) {
+        if (getDirectory() == null) {
+            return;
+        }
+        synchronized (client) {
+            for (int i = 0; i < client.getRequestInterceptorCount(); i++) {
+                if (client.getRequestInterceptor(i) instanceof RequestRecording) {
+                    return;
+                }
+            }
+            // first, so the request body is copied before other interceptors wrap it to count its bytes
+            client.addRequestInterceptor(new RequestRecording(), 0);
+            client.addResponseInterceptor(new ResponseRecording());
+        }
+    }
+
+    /**
+     * @return True if REST traffic is recorded in this JVM
+     */
+    public static boolean isEnabled() {
+        return getDirectory() != null;
+    }
+
+    /**
+     * Warn in the build log that the REST traffic of the step is written to disk
+     *
+     * @param listener The listener of the build step
+     */
+    public static void warnIfEnabled(TaskListener listener) {
+        File dir = getDirectory();
+        if (dir != null) {
+            listener.getLogger().println("[Warning] REST traffic with IBM UrbanCode Deploy is being recorded on this node to " +
+                                         dir.getAbsolutePath() + ". Property values and other responses are written to " +
+                                         "disk, review the fixtures before sharing them.");
+        }
+    }
+
+    /**
+     * @return The directory to write fixtures to, or null if recording is off
+     */
+    static File getDirectory() {
+        String dir = System.getProperty(DIR_PROPERTY);
+        return dir == null || dir.trim().isEmpty() ? null : new File(dir.trim());
+    }
+
+    /**
+     * Reduce a request uri to its path and query, the key the replay server matches requests by
+     */
+    static String pathAndQuery(String uri) {
+        try {
+            URI parsed = new URI(uri);
+            String path = parsed.getRawPath() == null || parsed.getRawPath().isEmpty() ? "/" : parsed.getRawPath();
+            return parsed.getRawQuery() == null ? path : path + "?" + parsed.getRawQuery();
+        }
+        catch (URISyntaxException ex) {
+            return uri;
+        }
+    }
+
+    /**
+     * Mask the values of secure properties in a JSON body, leaving other bodies as they are
+     */
+    static String redact(String body) {
+        String trimmed = body.trim();
+        try {
+            if (trimmed.startsWith("{")) {
+                JSONObject json = new JSONObject(trimmed);
+                return redact(json) ? json.toString() : body;
+            }
+            else if (trimmed.startsWith("[")) {
+                JSONArray json = new JSONArray(trimmed);
+                return redact(json) ? json.toString() : body;
+            }
+        }
+        catch (JSONException ex) {
+            // not JSON after all
+        }
+        return body;
+    }
+
+    /**
+     * @return True if a value was masked
+     */
+    private static boolean redact(Object value) throws JSONException {
+        boolean masked = false;
+        if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            if (json.has("value") && "true".equalsIgnoreCase(json.optString("secure"))) {
+                json.put("value", MASK);
+                masked = true;
+            }
+            for (Iterator<?> keys = json.keys(); keys.hasNext();) {
+                masked |= redact(json.get((String) keys.next()));
+            }
+        }
+        else if (value instanceof JSONArray) {
+            JSONArray json = (JSONArray) value;
+            for (int i = 0; i < json.length(); i++) {
+                masked |= redact(json.get(i));
+            }
+        }
+        return masked;
+    }
+
+    /**
+     * Mask the value query parameter of a request setting a secure property
+     */
+    static String redactUri(String uri) {
+        if (!uri.toLowerCase().contains("issecure=true")) {
+            return uri;
+        }
+        return uri.replaceAll("([?&]value=)[^&]*", "$1" + MASK);
+    }
+
+    private static void write(JSONObject exchange) {
+        File dir = getDirectory();
+        if (dir == null) {
+            return;
+        }
+
+        try {
+            String endpoint = exchange.getString("method") + "-" + exchange.getString("uri");
+            String slug = endpoint.replaceAll("\\?.*$", "").replaceAll("[^A-Za-z0-9]+", "_");
+            if (slug.length() > 80) {
+                slug = slug.substring(0, 80);
+            }
+            File fixture = new File(dir, String.format("%06d-%s.json", SEQUENCE.incrementAndGet(), slug));
+
+            dir.mkdirs();
+            OutputStream out = new FileOutputStream(fixture);
+            try {
+                out.write(exchange.toString(2).getBytes(UTF_8));
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException ex) {
+            log.warn("Failed to record a REST exchange: " + ex.getMessage());
+        }
+        catch (JSONException ex) {
+            log.warn("Failed to record a REST exchange: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts the record of an exchange with the request line and a small request body
+     */
+    private static class RequestRecording implements HttpRequestInterceptor {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            JSONObject exchange = new JSONObject();
+            try {
+                exchange.put("method", request.getRequestLine().getMethod());
+                exchange.put("uri", redactUri(pathAndQuery(request.getRequestLine().getUri())));
+
+                if (request instanceof HttpEntityEnclosingRequest) {
+                    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                    // uploads aren't replayed, their bodies aren't worth keeping
+                    if (entity != null && entity.isRepeatable() && entity.getContentLength() >= 0
+                        && entity.getContentLength() <= MAX_REQUEST_BODY)
+                    {
+                        ByteArrayOutputStream body = new ByteArrayOutputStream();
+                        entity.writeTo(body);
+                        exchange.put("requestBody", redact(new String(body.toByteArray(), UTF_8)));
+                    }
+                    else if (entity != null) {
+                        exchange.put("requestBodyLength", entity.getContentLength());
+                    }
+                }
+            }
+            catch (JSONException ex) {
+                throw new IOException("Failed to record the request: " + ex.getMessage(), ex);
+            }
+            context.setAttribute(EXCHANGE_ATTRIBUTE, exchange);
+        }
+    }
+
+    /**
+     * Completes the record of an exchange with the response, buffering a response
+     * body up to the size limit so the caller still reads it. A larger body is
+     * passed on as a stream and only its length is recorded.
+     */
+    private static class ResponseRecording implements HttpResponseInterceptor {
+        @Override
+        public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+            JSONObject exchange = (JSONObject) context.getAttribute(EXCHANGE_ATTRIBUTE);
+            if (exchange == null) {
+                return;
+            }
+            context.removeAttribute(EXCHANGE_ATTRIBUTE);
+
+            try {
+                exchange.put("status", response.getStatusLine().getStatusCode());
+                Header contentType = response.getFirstHeader("Content-Type");
+                if (contentType != null) {
+                    exchange.put("contentType", contentType.getValue());
+                }
+
+                HttpEntity entity = response.getEntity();
+                if (entity != null && entity.getContentLength() > MAX_RESPONSE_BODY) {
+                    exchange.put("responseBodyLength", entity.getContentLength());
+                }
+                else if (entity != null) {
+                    InputStream in = entity.getContent();
+                    byte[] head = readUpTo(in, MAX_RESPONSE_BODY + 1);
+                    if (head.length <= MAX_RESPONSE_BODY) {
+                        in.close();
+                        ByteArrayEntity buffered = new ByteArrayEntity(head);
+                        buffered.setContentType(entity.getContentType());
+                        buffered.setContentEncoding(entity.getContentEncoding());
+                        response.setEntity(buffered);
+                        exchange.put("responseBody", redact(new String(head, UTF_8)));
+                    }
+                    else {
+                        // the caller reads what was taken followed by the rest of the stream
+                        InputStreamEntity streamed = new InputStreamEntity(
+                                new SequenceInputStream(new ByteArrayInputStream(head), in), entity.getContentLength());
+                        streamed.setContentType(entity.getContentType());
+                        streamed.setContentEncoding(entity.getContentEncoding());
+                        response.setEntity(streamed);
+                        exchange.put("responseBodyLength", entity.getContentLength());
+                    }
+                }
+            }
+            catch (JSONException ex) {
+                throw new IOException("Failed to record the response: " + ex.getMessage(), ex);
+            }
+            write(exchange);
+        }
+
+        private static byte[] readUpTo(InputStream in, int limit) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while (out.size() < limit && (count = in.read(buffer, 0, Math.min(buffer.length, limit - out.size()))) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+}
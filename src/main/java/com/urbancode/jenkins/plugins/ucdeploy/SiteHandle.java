@@ -0,0 +1,101 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+import hudson.util.Secret;
+
+import java.io.Serializable;
+import java.net.URI;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import com.urbancode.ud.client.UDRestClient;
+
+/**
+ * This class carries what an agent needs to connect to a UCD site: the url,
+ * the effective credentials and the connection options. It is sent to agents
+ * instead of the whole site configuration.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class SiteHandle implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String url;
+    private String user;
+    private Secret password;
+    private boolean trustAllCerts;
+    private boolean alwaysCreateNewClient;
+
+    private transient ClientRegistry.Lease lease;
+
+    /**
+     * @param site The site to connect to
+     * @param altUser The alternative user to connect as, or null to use the site credentials
+     */
+    public SiteHandle(UCDeploySite site, UCDeployPublisher.UserBlock altUser) {
+        this.url = site.getUrl();
+        this.trustAllCerts = site.isTrustAllCerts();
+        this.alwaysCreateNewClient = site.isAlwaysCreateNewClient();
+        if (altUser != null) {
+            this.user = altUser.getAltUsername();
+            this.password = altUser.getAltPassword();
+        }
+        else {
+            this.user = site.getUser();
+            this.password = site.getPassword();
+        }
+    }
+
+    public URI getUri() throws AbortException {
+        try {
+            return new URI(url);
+        }
+        catch (java.net.URISyntaxException ex) {
+            throw new AbortException("URL " + url + " is malformed: " + ex.getMessage());
+        }
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public Secret getPassword() {
+        return password;
+    }
+
+    public boolean isAlwaysCreateNewClient() {
+        return alwaysCreateNewClient;
+    }
+
+    /**
+     * Get a client for the site on the node the handle was sent to. Clients are shared
+     * through the registry of that node unless the site always creates a new client.
+     * Call {@link #release()} once the client is no longer used.
+     */
+    public synchronized DefaultHttpClient getClient() {
+        String plainPassword = password != null ? password.getPlainText() : "";
+        if (alwaysCreateNewClient) {
+            return UDRestClient.createHttpClient(user, plainPassword, trustAllCerts);
+        }
+        if (lease == null) {
+            lease = ClientRegistry.acquire(url, user, plainPassword, trustAllCerts);
+        }
+        return lease.getClient();
+    }
+
+    /**
+     * Return the client to the registry, keeping its connections for the next push
+     */
+    public synchronized void release() {
+        if (lease != null) {
+            lease.release();
+            lease = null;
+        }
+    }
+}
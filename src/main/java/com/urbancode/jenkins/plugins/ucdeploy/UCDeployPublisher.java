@@ -16,12 +16,15 @@ import hudson.FilePath;
 import hudson.FilePath.FileCallable;
 import hudson.Launcher;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Descriptor.FormException;
 import hudson.remoting.VirtualChannel;
 import hudson.model.Hudson;
+import hudson.model.Node;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
 import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.util.Secret;
@@ -30,7 +33,16 @@ import jenkins.tasks.SimpleBuildStep;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.json.JSONObject;
 
@@ -52,6 +64,7 @@ import com.urbancode.jenkins.plugins.ucdeploy.DeployHelper.CreateSnapshotCompone
 import com.urbancode.jenkins.plugins.ucdeploy.VersionHelper;
 import com.urbancode.jenkins.plugins.ucdeploy.VersionHelper.VersionBlock;
 import com.urbancode.jenkins.plugins.ucdeploy.UCDeployPublisher.UserBlock;
+import com.urbancode.jenkins.plugins.ucdeploy.UploadMonitor.UploadMetrics;
 
 public class UCDeployPublisher extends Builder implements SimpleBuildStep {
 
@@ -61,6 +74,11 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
     private UserBlock altUser;
     private VersionBlock component;
     private DeployBlock deploy;
+    private List<VersionBlock> components;
+    private Integer maxConcurrentComponents;
+    private String provisionManifest;
+    private String logLevel;
+    private static final int DEFAULT_MAX_CONCURRENT_COMPONENTS = 4;
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(UCDeployPublisher.class);
 
     /**
@@ -125,6 +143,72 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         return component != null;
     }
 
+    /**
+     * @return The additional components to create versions of, alongside the component block
+     */
+    public List<VersionBlock> getComponents() {
+        if (components != null) {
+            return components;
+        }
+        else {
+            return Collections.emptyList();
+        }
+    }
+
+    @DataBoundSetter
+    public void setComponents(List<VersionBlock> components) {
+        this.components = components;
+    }
+
+    public int getMaxConcurrentComponents() {
+        if (maxConcurrentComponents != null && maxConcurrentComponents > 0) {
+            return maxConcurrentComponents;
+        }
+        else {
+            return DEFAULT_MAX_CONCURRENT_COMPONENTS;
+        }
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentComponents(int maxConcurrentComponents) {
+        this.maxConcurrentComponents = maxConcurrentComponents;
+    }
+
+    public String getProvisionManifest() {
+        if (provisionManifest != null) {
+            return provisionManifest;
+        }
+        else {
+            return "";
+        }
+    }
+
+    /**
+     * @param provisionManifest The workspace path of a JSON manifest of components to provision
+     *                          before any version is created
+     */
+    @DataBoundSetter
+    public void setProvisionManifest(String provisionManifest) {
+        this.provisionManifest = provisionManifest;
+    }
+
+    public String getLogLevel() {
+        if (logLevel != null) {
+            return logLevel;
+        }
+        else {
+            return "";
+        }
+    }
+
+    /**
+     * @param logLevel How much per-item detail goes to the console: quiet, normal or verbose
+     */
+    @DataBoundSetter
+    public void setLogLevel(String logLevel) {
+        this.logLevel = logLevel;
+    }
+
     public String getComponentName() {
         return component != null ? component.getComponentName() : "";
     }
@@ -189,6 +273,22 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         return (getDelivery() instanceof Push) ? ((Push)getDelivery()).getPushIncremental() : false;
     }
 
+    public Boolean getPushPlanOnly() {
+        return (getDelivery() instanceof Push) ? ((Push)getDelivery()).getPushPlanOnly() : false;
+    }
+
+    public String getMaxUploadFiles() {
+        return (getDelivery() instanceof Push) ? ((Push)getDelivery()).getMaxUploadFiles() : "";
+    }
+
+    public String getMaxUploadSize() {
+        return (getDelivery() instanceof Push) ? ((Push)getDelivery()).getMaxUploadSize() : "";
+    }
+
+    public Boolean getPushSkipIdentical() {
+        return (getDelivery() instanceof Push) ? ((Push)getDelivery()).getPushSkipIdentical() : false;
+    }
+
     public String getPullProperties() {
         return (getDelivery() instanceof Pull) ? ((Pull)getDelivery()).getPullProperties() : "";
     }
@@ -205,6 +305,14 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         return (getDelivery() instanceof Pull) ? ((Pull)getDelivery()).getPullIncremental() : false;
     }
 
+    public Boolean getPullWait() {
+        return (getDelivery() instanceof Pull) ? ((Pull)getDelivery()).getPullWait() : false;
+    }
+
+    public String getPullWaitTimeout() {
+        return (getDelivery() instanceof Pull) ? ((Pull)getDelivery()).getPullWaitTimeout() : "";
+    }
+
     public DeployBlock getDeploy() {
         return deploy;
     }
@@ -249,6 +357,10 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         return getCreateProcess() != null ? getCreateProcess().getProcessComponent() : "";
     }
 
+    public String getAdditionalApplications() {
+        return getCreateProcess() != null ? getCreateProcess().getAdditionalApplications() : "";
+    }
+
     public CreateSnapshotBlock getCreateSnapshot() {
         return deploy.getCreateSnapshot();
     }
@@ -293,6 +405,18 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         return deploy.getDeployOnlyChanged() == null ? false : getDeploy().getDeployOnlyChanged();
     }
 
+    public Boolean getSkipIfDeployed() {
+        return deploy != null ? deploy.getSkipIfDeployed() : false;
+    }
+
+    public String getCoalesceWindow() {
+        return deploy != null ? deploy.getCoalesceWindow() : "";
+    }
+
+    public Boolean getLockEnvironment() {
+        return deploy != null ? deploy.getLockEnvironment() : false;
+    }
+
     public UCDeploySite getSite() {
         UCDeploySite[] sites = GLOBALDESCRIPTOR.getSites();
         if (siteName == null && sites.length > 0) {
@@ -307,12 +431,36 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
     }
 
     @Override
-    public void perform(final Run<?, ?> build, FilePath workspace, Launcher launcher, final TaskListener listener)
+    public void perform(final Run<?, ?> build, FilePath workspace, Launcher launcher, final TaskListener buildListener)
             throws AbortException, InterruptedException, IOException {
         if (build.getResult() == Result.FAILURE || build.getResult() == Result.ABORTED) {
             throw new AbortException("Skip artifacts upload to IBM UrbanCode Deploy - build failed or aborted.");
         }
 
+        BuildLogger.Level level = BuildLogger.Level.parse(getLogLevel());
+        FilePath artifactsDir = new FilePath(build.getArtifactsDir());
+        BuildLogger listener = new BuildLogger(buildListener, level, artifactsDir, "ucd-detail");
+        RestTrafficRecorder.warnIfEnabled(listener);
+        RestCallRecorder restCalls = new RestCallRecorder();
+        RestCallRecorder previous = restCalls.attach();
+        try {
+            perform(build, workspace, listener, level, artifactsDir);
+        }
+        finally {
+            restCalls.detach(previous);
+            RestCallsAction.record(build, restCalls);
+            listener.close();
+        }
+    }
+
+    private void perform(
+            final Run<?, ?> build,
+            FilePath workspace,
+            final BuildLogger listener,
+            BuildLogger.Level level,
+            FilePath artifactsDir)
+            throws AbortException, InterruptedException, IOException {
+
         // Log requested site name and resolution
         listener.getLogger().println(String.format("[UCD] perform: requestedSiteName='%s'", getSiteName()));
         UCDeploySite udSite = getSite();
@@ -335,48 +483,248 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
                 udSite != null ? String.valueOf(udSite.getUri()) : "null"
         ));
 
-        DefaultHttpClient udClient = useAltUser
+        DefaultHttpClient siteClient = useAltUser
                 ? udSite.getTempClient(getAltUsername(), getAltPassword())
                 : udSite.getClient();
-        listener.getLogger().println("[UCD] perform: effClientId=" + System.identityHashCode(udClient) + ", usedPath=" + (altUser != null ? "tempClient" : "cachedClient"));
-        EnvVars envVars = build.getEnvironment(listener);
-
-        if (componentChecked()) {
-            listener.getLogger().println("[UCD] component path: version create/push will run.");
-            String buildUrl = Hudson.getInstance().getRootUrl() + build.getUrl();
-            PublishArtifactsCallable task = new PublishArtifactsCallable(
-                    buildUrl,
-                    build.getDisplayName(),
-                    udSite,
-                    altUser,
-                    getComponent(),
-                    envVars,
-                    listener);
-            workspace.act(task);
-        }
-
-        if (deployChecked()) {
-            listener.getLogger().println(String.format(
-                    "[UCD] deploy path: app='%s', env='%s', proc='%s', versions='%s'",
-                    getDeployApp(), getDeployEnv(), getDeployProc(), getDeployVersions()
-            ));
-            listener.getLogger().println(String.format(
-                    "[UCD] deploy path: using user='%s', pass='%s', uri='%s'",
-                    effUser, effPass, String.valueOf(udSite.getUri())
-            ));
+        listener.getLogger().println("[UCD] perform: effClientId=" + System.identityHashCode(siteClient) + ", usedPath=" + (altUser != null ? "tempClient" : "cachedClient"));
+        // a pooled copy of the client is shut down once no running step uses it
+        DefaultHttpClient udClient = ConcurrentClients.acquire(siteClient);
+        try {
+            EnvVars envVars = build.getEnvironment(listener);
+
+            String manifestPath = envVars.expand(getProvisionManifest());
+            if (!manifestPath.isEmpty()) {
+                FilePath manifest = workspace.child(manifestPath);
+                if (!manifest.exists()) {
+                    throw new AbortException("Provisioning manifest " + manifest.getRemote() + " does not exist");
+                }
+                listener.getLogger().println("[UCD] provisioning components from manifest '" + manifestPath + "'");
+                ProvisioningHelper provisioningHelper = new ProvisioningHelper(udSite.getUri(), udClient, listener);
+                provisioningHelper.provision(manifest.readToString(), envVars);
+            }
+
+            List<VersionBlock> versionBlocks = new ArrayList<VersionBlock>();
+            if (componentChecked()) {
+                versionBlocks.add(getComponent());
+            }
+            versionBlocks.addAll(getComponents());
+
+            if (!versionBlocks.isEmpty()) {
+                listener.getLogger().println("[UCD] component path: version create/push will run for " +
+                        versionBlocks.size() + " component(s).");
+                String buildUrl = Hudson.getInstance().getRootUrl() + build.getUrl();
+                // only the variables the blocks reference are sent to the agent
+                EnvVars pushEnvVars = EnvVarsFilter.referenced(envVars, versionBlocks);
+                SiteHandle siteHandle = new SiteHandle(udSite, altUser);
+                // the listener only serializes through a channel, measure the data sent with it
+                long payloadSize = serializedSize(siteHandle, versionBlocks, pushEnvVars);
+                PublishArtifactsCallable task = new PublishArtifactsCallable(
+                        buildUrl,
+                        build.getDisplayName(),
+                        siteHandle,
+                        versionBlocks,
+                        getMaxConcurrentComponents(),
+                        pushEnvVars,
+                        listener,
+                        level,
+                        udSite.getUploadRateLimit(getAgentLabels(workspace)));
+
+                // the agent writes through the same console stream, after what was logged so far
+                listener.getLogger().flush();
+                long actStart = System.currentTimeMillis();
+                PublishResult result = workspace.act(task);
+                long roundTrip = System.currentTimeMillis() - actStart;
+                listener.getLogger().println(String.format(
+                        "[UCD] remoting: sent %d of %d environment variables, payload %s, overhead %d ms",
+                        pushEnvVars.size(), envVars.size(), UploadMonitor.formatBytes(payloadSize),
+                        Math.max(0, roundTrip - result.agentMillis)));
+                BuildLogger.writeDetailLog(listener, artifactsDir, "ucd-push-detail", result.detail,
+                        result.detailLines, result.omittedLines);
+                for (UploadMetrics metrics : result.uploadMetrics) {
+                    UploadMetricsAction.record(build, metrics);
+                }
+                RestCallRecorder restCalls = RestCallRecorder.current();
+                if (restCalls != null) {
+                    restCalls.merge(result.restCalls);
+                }
+            }
 
-            DeployHelper deployHelper = new DeployHelper(udSite.getUri(), udClient, listener, envVars, udSite.isSkipProps());
+            if (deployChecked() && isPlanOnly(versionBlocks)) {
+                // the versions to deploy may never have been created
+                listener.getLogger().println("The deployment result is SKIPPED. 'Plan Only' was selected for a pushed " +
+                        "component, so no deployment is requested.");
+                DeploymentResultAction.record(build, new DeploymentResultAction.Deployment(
+                        envVars.expand(getDeployApp()), envVars.expand(getDeployEnv()),
+                        "SKIPPED", "plan only push"));
+            }
+            else if (deployChecked()) {
+                listener.getLogger().println(String.format(
+                        "[UCD] deploy path: app='%s', env='%s', proc='%s', versions='%s'",
+                        getDeployApp(), getDeployEnv(), getDeployProc(), getDeployVersions()
+                ));
+                listener.getLogger().println(String.format(
+                        "[UCD] deploy path: using user='%s', pass='%s', uri='%s'",
+                        effUser, effPass, String.valueOf(udSite.getUri())
+                ));
+
+                String deployApp = envVars.expand(getDeployApp());
+                String deployEnv = envVars.expand(getDeployEnv());
+                long coalesceWindow = parseSeconds(envVars.expand(getCoalesceWindow()), "Coalesce Window (seconds)");
+
+                // give way to a newer build deploying to the same environment
+                DeploymentCoordinator.Ticket ticket = null;
+                if (coalesceWindow > 0) {
+                    ticket = DeploymentCoordinator.register(udSite.getUrl(), deployApp, deployEnv, build);
+                    listener.getLogger().println("Waiting " + coalesceWindow + " seconds for newer deployments to environment '" +
+                            deployEnv + "' of application '" + deployApp + "'");
+                    if (!ticket.coalesce(TimeUnit.SECONDS.toMillis(coalesceWindow))) {
+                        recordSuperseded(build, listener, ticket, deployApp, deployEnv);
+                        return;
+                    }
+                }
+
+                DeploymentCoordinator.EnvironmentLock lock = null;
+                long queueMillis = 0L;
+                String deployResult;
+                try {
+                    // take our turn before requesting anything, so the server isn't left to serialize the deployments
+                    if (getLockEnvironment()) {
+                        listener.getLogger().println("Waiting for the lock on environment '" + deployEnv +
+                                "' of application '" + deployApp + "'");
+                        lock = DeploymentCoordinator.lock(udSite.getUrl(), deployApp, deployEnv);
+                        queueMillis = lock.getWaitMillis();
+                        listener.getLogger().println(String.format(
+                                "Acquired the lock on environment '%s' after %d ms behind %d queued deployment(s)",
+                                deployEnv, queueMillis, lock.getQueued()));
+                    }
+                    if (ticket != null && !ticket.submit()) {
+                        recordSuperseded(build, listener, ticket, deployApp, deployEnv);
+                        return;
+                    }
+
+                    DeployHelper deployHelper = new DeployHelper(udSite.getUri(), udClient, listener, envVars, udSite.isSkipProps());
+                    deployResult = deployHelper.runDeployment(getDeploy());
+                }
+                catch (IOException ex) {
+                    throw new AbortException("Deployment has failed due to IOException " + ex.getMessage());
+                }
+                catch (JSONException ex) {
+                    throw new AbortException("Deployment has failed due to JSONException " +  ex.getMessage());
+                }
+                finally {
+                    if (lock != null) {
+                        lock.release();
+                    }
+                    if (ticket != null) {
+                        ticket.close();
+                    }
+                }
+                String detail = "";
+                if (DeployHelper.SKIPPED.equals(deployResult)) {
+                    detail = "versions already deployed";
+                }
+                else if (DeployHelper.SUBMITTED.equals(deployResult)) {
+                    detail = "not waited for";
+                }
+                DeploymentResultAction.record(build, new DeploymentResultAction.Deployment(
+                        deployApp, deployEnv, deployResult, detail, queueMillis));
+            }
+        }
+        finally {
+            ConcurrentClients.release(siteClient);
+        }
+    }
 
-            try {
-                deployHelper.runDeployment(getDeploy());
+    /**
+     * @return True if any of the components only plans its push
+     */
+    private static boolean isPlanOnly(List<VersionBlock> versionBlocks) {
+        for (VersionBlock versionBlock : versionBlocks) {
+            if (versionBlock.getDelivery() instanceof Push && ((Push)versionBlock.getDelivery()).getPushPlanOnly()) {
+                return true;
             }
-            catch (IOException ex) {
-                throw new AbortException("Deployment has failed due to IOException " + ex.getMessage());
+        }
+        return false;
+    }
+
+    private void recordSuperseded(Run<?, ?> build, TaskListener listener, DeploymentCoordinator.Ticket ticket,
+            String deployApp, String deployEnv) {
+        String supersededBy = ticket.getSupersededBy();
+        listener.getLogger().println("The deployment result is SUPERSEDED. " + supersededBy +
+                " deploys newer versions to environment '" + deployEnv + "'.");
+        DeploymentResultAction.record(build, new DeploymentResultAction.Deployment(
+                deployApp, deployEnv, "SUPERSEDED", "superseded by " + supersededBy));
+        build.setResult(Result.NOT_BUILT);
+    }
+
+    /**
+     * Parse an optional number of seconds
+     *
+     * @param value The configured value, empty for none
+     * @param fieldName The title of the field, used in the error message
+     * @return The number of seconds, 0 if empty
+     * @throws AbortException
+     */
+    private static long parseSeconds(String value, String fieldName) throws AbortException {
+        if (value == null || value.trim().isEmpty()) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex) {
+            throw new AbortException("'" + fieldName + "' must be a number: " + value);
+        }
+    }
+
+    /**
+     * Measure the serialized size of objects sent to an agent
+     *
+     * @param objects The objects to measure
+     * @return The number of bytes, or -1 if the objects can't be serialized
+     */
+    private static long serializedSize(Object... objects) {
+        final long[] count = new long[1];
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    count[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    count[0] += len;
+                }
+            });
+            for (Object object : objects) {
+                out.writeObject(object);
             }
-            catch (JSONException ex) {
-                throw new AbortException("Deployment has failed due to JSONException " +  ex.getMessage());
+            out.close();
+        }
+        catch (IOException ex) {
+            return -1;
+        }
+        return count[0];
+    }
+
+    /**
+     * Get the labels of the agent a workspace is on
+     *
+     * @param workspace The workspace of the build
+     * @return The names of the labels assigned to the agent
+     */
+    private Set<String> getAgentLabels(FilePath workspace) {
+        Set<String> labels = new HashSet<String>();
+        Computer computer = workspace.toComputer();
+        Node node = computer != null ? computer.getNode() : null;
+
+        if (node != null) {
+            for (LabelAtom label : node.getAssignedLabels()) {
+                labels.add(label.getName());
             }
         }
+        return labels;
     }
 
     public static class UserBlock implements Serializable {
@@ -410,32 +758,38 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
      * Callable class that can be serialized and executed on a remote node
      *
      */
-    private static class PublishArtifactsCallable implements FileCallable<Boolean> {
+    private static class PublishArtifactsCallable implements FileCallable<PublishResult> {
         private static final long serialVersionUID = 1L;
         String buildUrl;
         String buildName;
-        UCDeploySite udSite;
-        UserBlock altUser;
-        VersionBlock component;
+        SiteHandle site;
+        List<VersionBlock> components;
+        int maxConcurrentComponents;
         EnvVars envVars;
         TaskListener listener;
+        BuildLogger.Level logLevel;
+        long uploadRateLimit;
 
         public PublishArtifactsCallable(
                 String buildUrl,
                 String buildName,
-                UCDeploySite udSite,
-                UserBlock altUser,
-                VersionBlock component,
+                SiteHandle site,
+                List<VersionBlock> components,
+                int maxConcurrentComponents,
                 EnvVars envVars,
-                TaskListener listener)
+                TaskListener listener,
+                BuildLogger.Level logLevel,
+                long uploadRateLimit)
         {
             this.buildUrl = buildUrl;
             this.buildName = buildName;
-            this.udSite = udSite;
-            this.altUser = altUser;
-            this.component = component;
+            this.site = site;
+            this.components = components;
+            this.maxConcurrentComponents = maxConcurrentComponents;
             this.envVars = envVars;
             this.listener = listener;
+            this.logLevel = logLevel;
+            this.uploadRateLimit = uploadRateLimit;
         }
 
         /**
@@ -447,43 +801,196 @@ public class UCDeployPublisher extends Builder implements SimpleBuildStep {
         }
 
         @Override
-        public Boolean invoke(File workspace, VirtualChannel node) throws IOException, InterruptedException {
-            DefaultHttpClient udClient;
-            final boolean useAlt = (altUser != null);
-            final String effUser = useAlt ? altUser.getAltUsername() : udSite.getUser();
-            final String effPass = useAlt
-                    ? (altUser.getAltPassword() != null ? altUser.getAltPassword().getPlainText() : "null")
-                    : (udSite.getPassword() != null ? udSite.getPassword().getPlainText() : "null");
+        public PublishResult invoke(File workspace, VirtualChannel node) throws IOException, InterruptedException {
+            long start = System.currentTimeMillis();
+            // buffer the console on the agent, the detail lines are sent back for the controller to write
+            TaskListener remoteListener = listener;
+            BuildLogger logger = new BuildLogger(remoteListener, logLevel, null, "ucd-push-detail");
+            listener = logger;
+            RestTrafficRecorder.warnIfEnabled(listener);
+            // the calls of the push are sent back with the result
+            RestCallRecorder restCalls = new RestCallRecorder();
+            RestCallRecorder previous = restCalls.attach();
+            try {
+                ArrayList<UploadMetrics> uploadMetrics = publish();
+                return new PublishResult(uploadMetrics, restCalls, System.currentTimeMillis() - start,
+                        logger.getDetail(), logger.getDetailLines(), logger.getOmittedLines());
+            }
+            finally {
+                restCalls.detach(previous);
+                site.release();
+                listener = remoteListener;
+                logger.close();
+            }
+        }
 
+        private ArrayList<UploadMetrics> publish() throws IOException, InterruptedException {
             listener.getLogger().println(String.format(
-                    "[UCD] push path: clientSource='%s', user='%s', pass='%s', siteUri='%s'",
-                    useAlt ? "temp" : "cached",
-                    effUser,
-                    effPass,
-                    String.valueOf(udSite.getUri())
+                    "[UCD] push path: user='%s', siteUri='%s'",
+                    site.getUser(),
+                    String.valueOf(site.getUri())
             ));
+            // every component shares the client, its connection pool and the metadata caches
+            DefaultHttpClient siteClient = site.getClient();
+            DefaultHttpClient udClient = ConcurrentClients.acquire(siteClient);
+            try {
+                return publish(udClient);
+            }
+            finally {
+                ConcurrentClients.release(siteClient);
+            }
+        }
 
-            if (useAlt) {
-                udClient = udSite.getTempClient(altUser.getAltUsername(), altUser.getAltPassword());
+        private ArrayList<UploadMetrics> publish(DefaultHttpClient udClient) throws IOException, InterruptedException {
+            boolean batch = components.size() > 1;
+            List<String> results = Collections.synchronizedList(new ArrayList<String>());
+            List<VersionHelper> helpers = Collections.synchronizedList(new ArrayList<VersionHelper>());
+            List<Callable<VersionHelper>> tasks = new ArrayList<Callable<VersionHelper>>();
+            for (VersionBlock component : components) {
+                tasks.add(createVersionTask(component, udClient, batch, helpers, results));
             }
-            else {
-                udClient = udSite.getClient();
+
+            AbortException failure = null;
+            try {
+                ParallelTasks.runAll("component versions", tasks, maxConcurrentComponents);
+            }
+            catch (AbortException ex) {
+                failure = ex;
             }
 
-            // Summarize push params
-            listener.getLogger().println(String.format(
-                    "[UCD] push params: component='%s', deliveryType='%s', version='%s', baseDir='%s', includes='%s'",
-                    component.getComponentName(),
-                    (component.getDelivery() != null ? component.getDelivery().getDeliveryType().name() : "null"),
-                    (component.getDelivery() instanceof Push ? ((Push)component.getDelivery()).getPushVersion() : ""),
-                    (component.getDelivery() instanceof Push ? ((Push)component.getDelivery()).getBaseDir() : ""),
-                    (component.getDelivery() instanceof Push ? ((Push)component.getDelivery()).getFileIncludePatterns() : "")
-            ));
+            // imports triggered in batch are waited for together, even if other components failed
+            List<ImportWatcher> imports = new ArrayList<ImportWatcher>();
+            ArrayList<UploadMetrics> uploadMetrics = new ArrayList<UploadMetrics>();
+            synchronized (helpers) {
+                for (VersionHelper helper : helpers) {
+                    if (helper.getPendingImport() != null) {
+                        imports.add(helper.getPendingImport());
+                    }
+                    if (helper.getUploadMetrics() != null) {
+                        uploadMetrics.add(helper.getUploadMetrics());
+                    }
+                }
+            }
 
-            VersionHelper versionHelper = new VersionHelper(udSite.getUri(), udClient, listener, envVars);
-            versionHelper.createVersion(component, "Jenkins Build " + buildName, buildUrl);
+            try {
+                if (!imports.isEmpty()) {
+                    listener.getLogger().println("[UCD] waiting for " + imports.size() + " triggered import(s)");
+                    try {
+                        ImportWatcher.waitForAll(imports, listener, ConcurrentClients.MAX_CONNECTIONS_PER_ROUTE);
+                    }
+                    catch (AbortException ex) {
+                        failure = failure == null ? ex : new AbortException(failure.getMessage() + "\n" + ex.getMessage());
+                    }
+                    finally {
+                        synchronized (helpers) {
+                            for (VersionHelper helper : helpers) {
+                                ImportWatcher watcher = helper.getPendingImport();
+                                if (watcher != null && watcher.isFinished() && watcher.getFailure() == null) {
+                                    helper.completeImport(watcher);
+                                    results.add(watcher.getComponent() + ": imported in " +
+                                            watcher.getDurationMillis() / 1000 + "s");
+                                }
+                                else if (watcher != null) {
+                                    results.add(watcher.getComponent() + ": import FAILED after " +
+                                            watcher.getDurationMillis() / 1000 + "s");
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            finally {
+                if (batch) {
+                    listener.getLogger().println("[UCD] component results:");
+                    synchronized (results) {
+                        for (String result : results) {
+                            listener.getLogger().println("    " + result);
+                        }
+                    }
+                }
+            }
 
-            return true;
+            if (failure != null) {
+                throw failure;
+            }
+            return uploadMetrics;
+        }
+
+        /**
+         * Create the task creating the version of a single component
+         *
+         * @param component The version block of the component
+         * @param udClient The client shared by all components
+         * @param batch Whether several components are processed, leaving import waits to the caller
+         * @param helpers The list to add the helper of the component to
+         * @param results The list to add the outcome of the task to
+         * @return The task, returning the helper that created the version
+         */
+        private Callable<VersionHelper> createVersionTask(
+                final VersionBlock component,
+                final DefaultHttpClient udClient,
+                final boolean batch,
+                final List<VersionHelper> helpers,
+                final List<String> results)
+        {
+            return new Callable<VersionHelper>() {
+                @Override
+                public VersionHelper call() throws AbortException {
+                    // Summarize push params
+                    listener.getLogger().println(String.format(
+                            "[UCD] push params: component='%s', deliveryType='%s', version='%s', baseDir='%s', includes='%s'",
+                            component.getComponentName(),
+                            (component.getDelivery() != null ? component.getDelivery().getDeliveryType().name() : "null"),
+                            (component.getDelivery() instanceof Push ? ((Push)component.getDelivery()).getPushVersion() : ""),
+                            (component.getDelivery() instanceof Push ? ((Push)component.getDelivery()).getBaseDir() : ""),
+                            (component.getDelivery() instanceof Push ? ((Push)component.getDelivery()).getFileIncludePatterns() : "")
+                    ));
+
+                    long start = System.currentTimeMillis();
+                    VersionHelper versionHelper = new VersionHelper(site.getUri(), udClient, listener,
+                            new EnvVars(envVars));
+                    versionHelper.setUploadRateLimit(uploadRateLimit);
+                    versionHelper.setDeferImportWait(batch);
+                    try {
+                        versionHelper.createVersion(component, "Jenkins Build " + buildName, buildUrl);
+                    }
+                    catch (AbortException ex) {
+                        results.add(component.getComponentName() + ": FAILED after " +
+                                (System.currentTimeMillis() - start) / 1000 + "s - " + ex.getMessage());
+                        throw new AbortException(component.getComponentName() + ": " + ex.getMessage());
+                    }
+                    finally {
+                        helpers.add(versionHelper);
+                    }
+
+                    results.add(component.getComponentName() + ": completed in " +
+                            (System.currentTimeMillis() - start) / 1000 + "s");
+                    return versionHelper;
+                }
+            };
+        }
+    }
+
+    /**
+     * The outcome of a push returned from the agent
+     */
+    private static class PublishResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private ArrayList<UploadMetrics> uploadMetrics;
+        private RestCallRecorder restCalls;
+        private long agentMillis;
+        private String detail;
+        private int detailLines;
+        private int omittedLines;
+
+        private PublishResult(ArrayList<UploadMetrics> uploadMetrics, RestCallRecorder restCalls, long agentMillis,
+                String detail, int detailLines, int omittedLines) {
+            this.uploadMetrics = uploadMetrics;
+            this.restCalls = restCalls;
+            this.agentMillis = agentMillis;
+            this.detail = detail;
+            this.detailLines = detailLines;
+            this.omittedLines = omittedLines;
         }
     }
 
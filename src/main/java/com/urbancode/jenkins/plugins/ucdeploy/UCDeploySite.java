@@ -15,6 +15,8 @@ import hudson.util.Secret;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.Map;
 
 import javax.ws.rs.core.UriBuilder;
 
@@ -56,6 +58,10 @@ public class UCDeploySite implements Serializable {
     public boolean skipProps;
 
     private boolean alwaysCreateNewClient;
+
+    private int uploadRateLimit;
+
+    private String agentUploadRateLimits;
     
 
     public static DefaultHttpClient client;
@@ -290,6 +296,81 @@ public class UCDeploySite implements Serializable {
         this.alwaysCreateNewClient = alwaysCreateNewClient;
     }
 
+    /**
+     * Gets the upload rate limit
+     *
+     * @return the maximum upload rate in KB per second, 0 for unlimited
+     */
+    public int getUploadRateLimit() {
+        return uploadRateLimit;
+    }
+
+    /**
+     * Sets the upload rate limit
+     *
+     * @param uploadRateLimit
+     *          the maximum upload rate in KB per second, 0 for unlimited
+     */
+    @DataBoundSetter
+    public void setUploadRateLimit(int uploadRateLimit) {
+        this.uploadRateLimit = uploadRateLimit;
+    }
+
+    /**
+     * Gets the per agent label upload rate limits
+     *
+     * @return newline separated label=KB per second pairs
+     */
+    public String getAgentUploadRateLimits() {
+        if (agentUploadRateLimits != null) {
+            return agentUploadRateLimits;
+        }
+        else {
+            return "";
+        }
+    }
+
+    /**
+     * Sets the per agent label upload rate limits
+     *
+     * @param agentUploadRateLimits
+     *          newline separated label=KB per second pairs
+     */
+    @DataBoundSetter
+    public void setAgentUploadRateLimits(String agentUploadRateLimits) {
+        this.agentUploadRateLimits = agentUploadRateLimits;
+    }
+
+    /**
+     * Resolve the upload rate limit for an agent, the lowest of the site limit
+     * and the limits of all labels the agent has
+     *
+     * @param agentLabels The labels assigned to the agent running the upload
+     * @return The maximum upload rate in bytes per second, 0 for unlimited
+     * @throws AbortException
+     */
+    public long getUploadRateLimit(Collection<String> agentLabels) throws AbortException {
+        long limit = uploadRateLimit;
+
+        for (Map.Entry<String, String> entry : DeliveryHelper.DeliveryBlock.mapProperties(getAgentUploadRateLimits().trim()).entrySet()) {
+            if (agentLabels.contains(entry.getKey())) {
+                long labelLimit;
+                try {
+                    labelLimit = Long.parseLong(entry.getValue());
+                }
+                catch (NumberFormatException ex) {
+                    throw new AbortException("Invalid upload rate limit '" + entry.getValue() + "' for agent label '"
+                            + entry.getKey() + "'");
+                }
+                if (labelLimit > 0 && (limit <= 0 || labelLimit < limit)) {
+                    limit = labelLimit;
+                }
+            }
+        }
+
+        return limit > 0 ? limit * 1024L : 0L;
+    }
+
     /**
      * Test whether the client can connect to the UCD site
      *
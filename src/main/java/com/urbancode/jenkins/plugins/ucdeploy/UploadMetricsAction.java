@@ -0,0 +1,68 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.urbancode.jenkins.plugins.ucdeploy.UploadMonitor.UploadMetrics;
+
+/**
+ * This class records the upload numbers of every component version pushed by a
+ * build, shown in the build summary and exported through the remote API
+ *
+ */
+@ExportedBean
+public class UploadMetricsAction implements Action {
+    private List<UploadMetrics> uploads = new ArrayList<UploadMetrics>();
+
+    /**
+     * Add upload metrics to a build, creating the action if necessary
+     *
+     * @param build The build that pushed the version
+     * @param metrics The metrics of the upload
+     */
+    public static synchronized void record(Run<?, ?> build, UploadMetrics metrics) {
+        UploadMetricsAction action = build.getAction(UploadMetricsAction.class);
+        if (action == null) {
+            action = new UploadMetricsAction();
+            build.addAction(action);
+        }
+        action.uploads.add(metrics);
+    }
+
+    @Exported(inline = true)
+    public List<UploadMetrics> getUploads() {
+        return uploads;
+    }
+
+    public String formatBytes(long bytes) {
+        return UploadMonitor.formatBytes(bytes);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "UrbanCode Deploy Uploads";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "ucdUploads";
+    }
+}
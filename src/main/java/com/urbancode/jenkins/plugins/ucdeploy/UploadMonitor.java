@@ -0,0 +1,344 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.model.TaskListener;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * This class measures the bytes sent by a version upload and periodically
+ * reports progress, throughput and the estimated time remaining to the build log.
+ * When a bandwidth limiter is set the upload is throttled to its rate. Request
+ * bodies are counted by an interceptor on the http client, which only counts
+ * requests made by a thread that has an active monitor.
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class UploadMonitor {
+    private static final long REPORT_INTERVAL = 10000L;
+    private static final int THROTTLE_CHUNK = 16 * 1024;
+    private static final ThreadLocal<UploadMonitor> ACTIVE = new ThreadLocal<UploadMonitor>();
+    private static final AtomicLong LAST_THROUGHPUT = new AtomicLong();
+
+    private String component;
+    private String version;
+    private int totalFiles;
+    private long totalBytes;
+    private TaskListener listener;
+    private AtomicLong bytesSent = new AtomicLong();
+    private long startTime;
+    private Thread reporter;
+    private BandwidthLimiter limiter;
+
+    public UploadMonitor(String component, String version, int totalFiles, long totalBytes, TaskListener listener) {
+        this.component = component;
+        this.version = version;
+        this.totalFiles = totalFiles;
+        this.totalBytes = totalBytes;
+        this.listener = listener;
+    }
+
+    /**
+     * Throttle the upload with a shared bandwidth limiter
+     *
+     * @param limiter The limiter to acquire bandwidth from, or null for unlimited
+     */
+    public void setBandwidthLimiter(BandwidthLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Add the byte counting interceptor to a client, if it isn't there already
+     *
+     * @param client The client used to upload files
+     */
+    public static void install(DefaultHttpClient client) {
+        synchronized (client) {
+            for (int i = 0; i < client.getRequestInterceptorCount(); i++) {
+                if (client.getRequestInterceptor(i) instanceof CountingInterceptor) {
+                    return;
+                }
+            }
+            client.addRequestInterceptor(new CountingInterceptor());
+        }
+    }
+
+    /**
+     * Start counting uploads made by the current thread and start the progress reporter
+     */
+    public void start() {
+        startTime = System.currentTimeMillis();
+        ACTIVE.set(this);
+
+        reporter = new Thread("UCD upload progress: " + component) {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        Thread.sleep(REPORT_INTERVAL);
+                        report();
+                    }
+                }
+                catch (InterruptedException ex) {
+                    // upload finished
+                }
+            }
+        };
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Stop counting and reporting
+     *
+     * @return The final metrics of the upload
+     */
+    public UploadMetrics stop() {
+        ACTIVE.remove();
+        if (reporter != null) {
+            reporter.interrupt();
+        }
+
+        long duration = Math.max(1L, System.currentTimeMillis() - startTime);
+        UploadMetrics metrics = new UploadMetrics(component, version, getHostName(), totalFiles, totalBytes,
+                bytesSent.get(), duration);
+        if (metrics.getBytesSent() > 0) {
+            LAST_THROUGHPUT.set(metrics.getThroughput());
+        }
+        listener.getLogger().println("Uploaded " + formatBytes(metrics.getBytesSent()) + " in " + duration + " ms ("
+                + formatBytes(metrics.getThroughput()) + "/s)");
+        return metrics;
+    }
+
+    /**
+     * @return The throughput of the last upload from this JVM in bytes per second, 0 if none
+     */
+    public static long getLastThroughput() {
+        return LAST_THROUGHPUT.get();
+    }
+
+    /**
+     * @return The monitor bound to the current thread, or null
+     */
+    static UploadMonitor current() {
+        return ACTIVE.get();
+    }
+
+    /**
+     * Bind a monitor to the current thread, used when an upload continues on a worker thread
+     *
+     * @param monitor The monitor to bind, or null to unbind
+     */
+    static void bind(UploadMonitor monitor) {
+        if (monitor == null) {
+            ACTIVE.remove();
+        }
+        else {
+            ACTIVE.set(monitor);
+        }
+    }
+
+    void addBytes(long count) {
+        bytesSent.addAndGet(count);
+    }
+
+    void throttle(long count) throws IOException {
+        if (limiter != null) {
+            limiter.acquire(count);
+        }
+    }
+
+    private void report() {
+        long sent = bytesSent.get();
+        long elapsed = Math.max(1L, System.currentTimeMillis() - startTime);
+        long throughput = sent * 1000L / elapsed;
+        int percent = totalBytes > 0 ? (int) Math.min(100L, sent * 100L / totalBytes) : 0;
+
+        StringBuilder progress = new StringBuilder();
+        if (totalBytes > 0) {
+            progress.append("Uploading ").append(totalFiles).append(" files: ")
+                    .append(formatBytes(sent)).append(" of ").append(formatBytes(totalBytes))
+                    .append(" (").append(percent).append("%), ");
+        }
+        else {
+            // the matched files are all empty, there is nothing to measure progress against
+            progress.append("Uploading: ").append(formatBytes(sent)).append(" sent, ");
+        }
+        progress.append(formatBytes(throughput)).append("/s");
+        if (throughput > 0 && sent < totalBytes) {
+            progress.append(", about ").append((totalBytes - sent) / throughput).append(" seconds remaining");
+        }
+        listener.getLogger().println(progress.toString());
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (IOException ex) {
+            return "unknown";
+        }
+    }
+
+    /**
+     * Format a byte count for the build log
+     *
+     * @param bytes The number of bytes
+     * @return The byte count in B, KB, MB or GB
+     */
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024L) {
+            return bytes + " B";
+        }
+        else if (bytes < 1024L * 1024L) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        else if (bytes < 1024L * 1024L * 1024L) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+        }
+        return String.format("%.2f GB", bytes / (1024.0 * 1024.0 * 1024.0));
+    }
+
+    /**
+     * Wraps the body of outgoing requests to count the bytes written for the
+     * monitor of the sending thread
+     */
+    private static class CountingInterceptor implements HttpRequestInterceptor {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            UploadMonitor monitor = current();
+            if (monitor != null && request instanceof HttpEntityEnclosingRequest) {
+                HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+                if (entityRequest.getEntity() != null) {
+                    entityRequest.setEntity(new CountingEntity(entityRequest.getEntity(), monitor));
+                }
+            }
+        }
+    }
+
+    private static class CountingEntity extends HttpEntityWrapper {
+        private UploadMonitor monitor;
+
+        CountingEntity(HttpEntity entity, UploadMonitor monitor) {
+            super(entity);
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            wrappedEntity.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    monitor.throttle(1);
+                    out.write(b);
+                    monitor.addBytes(1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    // throttle in small chunks so the limiter is shared smoothly
+                    while (len > 0) {
+                        int chunk = Math.min(len, THROTTLE_CHUNK);
+                        monitor.throttle(chunk);
+                        out.write(b, off, chunk);
+                        monitor.addBytes(chunk);
+                        off += chunk;
+                        len -= chunk;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The final numbers of a single version upload
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class UploadMetrics implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private String component;
+        private String version;
+        private String agent;
+        private int files;
+        private long bytes;
+        private long bytesSent;
+        private long durationMillis;
+
+        public UploadMetrics(String component, String version, String agent, int files, long bytes, long bytesSent,
+                long durationMillis) {
+            this.component = component;
+            this.version = version;
+            this.agent = agent;
+            this.files = files;
+            this.bytes = bytes;
+            this.bytesSent = bytesSent;
+            this.durationMillis = durationMillis;
+        }
+
+        @Exported
+        public String getComponent() {
+            return component;
+        }
+
+        @Exported
+        public String getVersion() {
+            return version;
+        }
+
+        @Exported
+        public String getAgent() {
+            return agent;
+        }
+
+        @Exported
+        public int getFiles() {
+            return files;
+        }
+
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Exported
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        @Exported
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @return The average upload rate in bytes per second
+         */
+        @Exported
+        public long getThroughput() {
+            return durationMillis > 0 ? bytesSent * 1000L / durationMillis : 0L;
+        }
+    }
+}
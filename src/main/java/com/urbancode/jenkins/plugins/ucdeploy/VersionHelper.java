@@ -21,9 +21,14 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.nio.charset.Charset;
 
 import org.apache.http.impl.client.DefaultHttpClient;
@@ -37,6 +42,8 @@ import com.urbancode.jenkins.plugins.ucdeploy.ComponentHelper.CreateComponentBlo
 import com.urbancode.jenkins.plugins.ucdeploy.DeliveryHelper.DeliveryBlock;
 import com.urbancode.jenkins.plugins.ucdeploy.DeliveryHelper.Pull;
 import com.urbancode.jenkins.plugins.ucdeploy.DeliveryHelper.Push;
+import com.urbancode.jenkins.plugins.ucdeploy.PropSheetDefCache.PropSheetDef;
+import com.urbancode.jenkins.plugins.ucdeploy.UploadMonitor.UploadMetrics;
 import com.urbancode.ud.client.ApplicationClient;
 import com.urbancode.ud.client.ComponentClient;
 import com.urbancode.ud.client.PropertyClient;
@@ -54,18 +61,34 @@ import org.slf4j.LoggerFactory;
 @SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
 public class VersionHelper {
     public static final Logger log = LoggerFactory.getLogger(VersionHelper.class);
+    private static final int SCAN_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int PLAN_LARGEST_FILES = 10;
+    private static final int PROPERTY_THREADS = ConcurrentClients.MAX_CONNECTIONS_PER_ROUTE;
+    private static final Object ENV_VARS_LOCK = new Object();
+    private static final long DEFAULT_IMPORT_TIMEOUT_MINUTES = 30;
+    public static final String CONTENT_DIGEST_PROPERTY = "jenkins.contentDigest";
     private ApplicationClient appClient;
     private ComponentClient compClient;
     private PropertyClient propClient;
     private VersionClient verClient;
+    private RestHelper restHelper;
     private TaskListener listener;
     private EnvVars envVars;
+    private UploadMetrics uploadMetrics;
+    private URI ucdUrl;
+    private long uploadRateLimit;
+    private boolean deferImportWait;
+    private ImportWatcher pendingImport;
 
     public VersionHelper(URI ucdUrl, DefaultHttpClient httpClient, TaskListener listener, EnvVars envVars) {
+        httpClient = ConcurrentClients.threadSafe(httpClient);
+        UploadMonitor.install(httpClient);
+        this.ucdUrl = ucdUrl;
         appClient = new ApplicationClient(ucdUrl, httpClient);
         compClient = new ComponentClient(ucdUrl, httpClient);
         propClient = new PropertyClient(ucdUrl, httpClient);
         verClient = new VersionClient(ucdUrl, httpClient);
+        restHelper = new RestHelper(ucdUrl, httpClient);
         this.listener = listener;
         this.envVars = envVars;
     }
@@ -130,7 +153,7 @@ public class VersionHelper {
      *
      */
     public void createVersion(VersionBlock versionBlock, String linkName, String linkUrl) throws AbortException {
-        ComponentHelper componentHelper = new ComponentHelper(appClient, compClient, listener, envVars);
+        ComponentHelper componentHelper = new ComponentHelper(appClient, compClient, listener, envVars, ucdUrl);
         String componentName = envVars.expand(versionBlock.getComponentName());
         String componentTag = envVars.expand(versionBlock.getComponentTag());
 
@@ -138,6 +161,80 @@ public class VersionHelper {
             throw new AbortException("Component Name is a required property.");
         }
 
+        // plan the upload before anything is changed on the server
+        FileScanner.ScanResult scanResult = null;
+        FileScanner.ScanTotals uploadTotals = null;
+        String contentDigest = null;
+        if (versionBlock.getDelivery().getDeliveryType() == DeliveryBlock.DeliveryType.Push) {
+            Push pushBlock = (Push)versionBlock.getDelivery();
+            String version = envVars.expand(pushBlock.getPushVersion());
+            if (version == null || version.isEmpty() || version.length() > 255) {
+                throw new AbortException("Failed to create version '" + version + "' in UrbanCode Deploy. UrbanCode Deploy " +
+                                         "version name length must be between 1 and  255 characters long. (Current length: " +
+                                         version.length() + ")");
+            }
+
+            File base = new File(envVars.expand(pushBlock.getBaseDir()));
+            if (!base.exists()) {
+                throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not exist");
+            }
+
+            String[] includes = ConfigTemplate.of(pushBlock.getFileIncludePatterns()).expandList(envVars);
+            String[] excludes = ConfigTemplate.of(pushBlock.getFileExcludePatterns()).expandList(envVars);
+
+            // only list the files when a plan needs them, otherwise count them for the upload progress
+            FileScanner scanner = new FileScanner(includes, excludes);
+            if (!needsUploadPlan(pushBlock)) {
+                uploadTotals = scanner.count(base);
+                for (String unreadable : uploadTotals.getUnreadable()) {
+                    listener.getLogger().println("[Warning] Skipped unreadable path " + unreadable);
+                }
+                if (uploadTotals.getFileCount() == 0) {
+                    throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not contain any " +
+                                             "files matching the include and exclude patterns. Please place files.");
+                }
+            }
+            else {
+                long scanStart = System.currentTimeMillis();
+                scanResult = scanner.scan(base, SCAN_THREADS);
+                for (String unreadable : scanResult.getUnreadable()) {
+                    listener.getLogger().println("[Warning] Skipped unreadable path " + unreadable);
+                }
+                if (scanResult.getFileCount() == 0) {
+                    throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not contain any " +
+                                             "files matching the include and exclude patterns. Please place files.");
+                }
+                listener.getLogger().println("Found " + scanResult.getFileCount() + " files (" + scanResult.getTotalBytes() +
+                                             " bytes) to upload in " + (System.currentTimeMillis() - scanStart) + " ms");
+
+                checkUploadPlan(pushBlock, scanResult);
+            }
+            if (pushBlock.getPushPlanOnly()) {
+                listener.getLogger().println("'Plan Only' option selected. No component version was created for version '" +
+                                             version + "' on component '" + componentName + "'");
+                return;
+            }
+
+            // a retried build finds the version it already pushed
+            if (pushBlock.getPushSkipIdentical()) {
+                String settings = envVars.expand(pushBlock.getCharset()) + "|" + envVars.expand(pushBlock.getExtensions());
+                try {
+                    long digestStart = System.currentTimeMillis();
+                    contentDigest = scanResult.getContentDigest(base, settings);
+                    listener.getLogger().println("Content digest " + contentDigest + " computed in " +
+                                                 (System.currentTimeMillis() - digestStart) + " ms");
+                }
+                catch (IOException ex) {
+                    throw new AbortException("An error occurred while computing the content digest of the files: " +
+                                             ex.getMessage());
+                }
+
+                if (findIdenticalVersion(componentName, version, contentDigest)) {
+                    return;
+                }
+            }
+        }
+
         // create component
         if (versionBlock.createComponentChecked()) {
             log.info("[UrbanCode Deploy] create component starts...");
@@ -156,29 +253,17 @@ public class VersionHelper {
 
         // create version and upload files
         if (versionBlock.getDelivery().getDeliveryType() == DeliveryBlock.DeliveryType.Push) {
-            log.info("[UrbanCode Deploy] create version and upload files starts...");
             Push pushBlock = (Push)versionBlock.getDelivery();
             String version = envVars.expand(pushBlock.getPushVersion());
+            File base = new File(envVars.expand(pushBlock.getBaseDir()));
+            String[] includes = ConfigTemplate.of(pushBlock.getFileIncludePatterns()).expandList(envVars);
+            String[] excludes = ConfigTemplate.of(pushBlock.getFileExcludePatterns()).expandList(envVars);
+            log.info("[UrbanCode Deploy] create version and upload files starts...");
             listener.getLogger().println("Creating new component version and Uploading files to version '" + version + "' on component '" + componentName +
                                          "'");
-            if (version == null || version.isEmpty() || version.length() > 255) {
-                throw new AbortException("Failed to create version '" + version + "' in UrbanCode Deploy. UrbanCode Deploy " +
-                                         "version name length must be between 1 and  255 characters long. (Current length: " +
-                                         version.length() + ")");
-            }
 
             UUID versionId;
-            File base = new File(envVars.expand(pushBlock.getBaseDir()));
-            if (!base.exists()) {
-                throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not exist");
-            }
-            
-            if(base.list().length==0) {
-                throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not contain any files to upload. Please place files.");
-            }
-            String[] includes = splitFiles(envVars.expand(pushBlock.getFileIncludePatterns()));
-            String[] excludes = splitFiles(envVars.expand(pushBlock.getFileExcludePatterns()));
-            String[] extensions = splitFiles(envVars.expand(pushBlock.getExtensions()));
+            String[] extensions = ConfigTemplate.of(pushBlock.getExtensions()).expandList(envVars);
             String charsetString = envVars.expand(pushBlock.getCharset());
             Charset charset = Charset.defaultCharset();
             if (!StringUtils.isBlank(charsetString)) {
@@ -186,41 +271,41 @@ public class VersionHelper {
                 charset = Charset.forName(charsetString);
                 listener.getLogger().println("Charset Display Name: " + charset.displayName());
             }
+            UploadMonitor monitor = new UploadMonitor(componentName, version,
+                                                      scanResult != null ? scanResult.getFileCount() : uploadTotals.getFileCount(),
+                                                      scanResult != null ? scanResult.getTotalBytes() : uploadTotals.getTotalBytes(),
+                                                      listener);
+            BandwidthLimiter limiter = BandwidthLimiter.forServer(ucdUrl.toString(), uploadRateLimit);
+            if (limiter != null) {
+                listener.getLogger().println("Limiting upload bandwidth to " + UploadMonitor.formatBytes(limiter.getRate()) + "/s");
+            }
+            monitor.setBandwidthLimiter(limiter);
+            monitor.start();
             try {
                 versionId = verClient.createAndAddVersionFiles(componentName, version, envVars.expand(pushBlock.getPushDescription()), base, "", includes, excludes, true, true, charset, extensions);
             }
             catch (Exception ex) {
                 throw new AbortException("Failed to create component version and uploading files: " + ex.getMessage());
             }
-            listener.getLogger().println("Successfully created component version with UUID '" + versionId.toString() + "' and uploaded files.");
-
-            try {
-                putEnvVar(componentName + "_VersionId", versionId.toString());
-            }
-            catch (Exception ex) {
-                listener.getLogger().println("[Warning] Failed to set version ID as environment variable.");
+            finally {
+                uploadMetrics = monitor.stop();
             }
+            listener.getLogger().println("Successfully created component version with UUID '" + versionId.toString() + "' and uploaded files.");
             log.info("[UrbanCode Deploy] create version and upload files ends...");
 
-            // set version properties
-            listener.getLogger().println("Setting properties for version '" + version + "' on component '" + componentName + "'");
-            log.info("[UrbanCode Deploy] set version properties starts...");
-            setComponentVersionProperties(componentName,
-                                          version,
-                                          DeliveryBlock.mapProperties(envVars.expand(pushBlock.getPushProperties())));
-            log.info("[UrbanCode Deploy] set version properties ends...");
-
-            // add link
-            listener.getLogger().println("Creating component version link '" + linkName + "' to URL '" + linkUrl + "'");
-            try {
-                log.info("[UrbanCode Deploy] add link starts...");
-                compClient.addComponentVersionLink(componentName, version, linkName, linkUrl);
-                log.info("[UrbanCode Deploy] add link ends...");
-            }
-            catch (Exception ex) {
-                log.info("[UrbanCode Deploy] add link failed...");
-                log.info("Failed to add a version link: " + ex.getMessage());
-                throw new AbortException("Failed to add a version link: " + ex.getMessage());
+            // the remaining steps only need the version to exist, run them together
+            Map<String, String> versionProperties =
+                    ConfigTemplate.of(pushBlock.getPushProperties()).expandProperties(envVars);
+            List<Callable<Void>> postUpload = new ArrayList<Callable<Void>>();
+            postUpload.add(versionIdEnvVarTask(componentName, versionId));
+            postUpload.add(versionPropertiesTask(componentName, version, versionProperties));
+            postUpload.add(versionLinkTask(componentName, version, linkName, linkUrl));
+            ParallelTasks.runAll("post-upload steps", postUpload, postUpload.size());
+
+            // the digest marks the version complete, a retry only skips a version that has it
+            if (contentDigest != null) {
+                setComponentVersionProperties(componentName, version,
+                                              Collections.singletonMap(CONTENT_DIGEST_PROPERTY, contentDigest));
             }
         }
 
@@ -228,12 +313,28 @@ public class VersionHelper {
         else if (versionBlock.getDelivery().getDeliveryType() == DeliveryBlock.DeliveryType.Pull) {
             Pull pullBlock = (Pull)versionBlock.getDelivery();
 
-            Map<String, String> mappedProperties = DeliveryBlock.mapProperties(envVars.expand(pullBlock.getPullProperties()));
-            listener.getLogger().println("Using runtime properties " + mappedProperties);
+            Map<String, String> mappedProperties = ConfigTemplate.of(pullBlock.getPullProperties()).expandProperties(envVars);
+            BuildLogger.detail(listener, "Using runtime properties " + mappedProperties);
+
+            ImportWatcher watcher = null;
+            if (pullBlock.getPullWait()) {
+                long timeout = parseLimit(envVars.expand(pullBlock.getPullWaitTimeout()), "Wait Timeout (minutes)");
+                if (timeout <= 0) {
+                    timeout = DEFAULT_IMPORT_TIMEOUT_MINUTES;
+                }
+                watcher = new ImportWatcher(restHelper, componentName, TimeUnit.MINUTES.toMillis(timeout));
+                watcher.start();
+            }
 
             try {
                 log.info("[UrbanCode Deploy] import version starts...");
-                compClient.importComponentVersions(componentName, mappedProperties);
+                // the watcher keeps the id of the import request to ask for its status
+                if (watcher != null) {
+                    watcher.trigger(mappedProperties);
+                }
+                else {
+                    compClient.importComponentVersions(componentName, mappedProperties);
+                }
                 log.info("[UrbanCode Deploy] import version ends...");
             }
             catch (IOException ex) {
@@ -247,6 +348,16 @@ public class VersionHelper {
                 log.info("An error occurred while creating JSON version import object : " + ex.getMessage());
                 throw new AbortException("An error occurred while creating JSON version import object : " + ex.getMessage());
             }
+
+            if (watcher != null) {
+                if (deferImportWait) {
+                    pendingImport = watcher;
+                }
+                else {
+                    waitForImport(watcher);
+                    completeImport(watcher);
+                }
+            }
         }
 
         // invalid type
@@ -257,6 +368,364 @@ public class VersionHelper {
         }
     }
 
+    /**
+     * Create the task publishing the ID of a new version as an environment variable,
+     * only warning if it fails
+     */
+    private Callable<Void> versionIdEnvVarTask(final String componentName, final UUID versionId) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    putEnvVar(componentName + "_VersionId", versionId.toString());
+                }
+                catch (Exception ex) {
+                    listener.getLogger().println("[Warning] Failed to set version ID as environment variable.");
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Create the task setting the properties of a new version
+     */
+    private Callable<Void> versionPropertiesTask(
+        final String componentName,
+        final String version,
+        final Map<String, String> versionProperties)
+    {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                listener.getLogger().println("Setting properties for version '" + version + "' on component '" +
+                                             componentName + "'");
+                log.info("[UrbanCode Deploy] set version properties starts...");
+                setComponentVersionProperties(componentName, version, versionProperties);
+                log.info("[UrbanCode Deploy] set version properties ends...");
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Create the task linking a new version to the build
+     */
+    private Callable<Void> versionLinkTask(
+        final String componentName,
+        final String version,
+        final String linkName,
+        final String linkUrl)
+    {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                listener.getLogger().println("Creating component version link '" + linkName + "' to URL '" + linkUrl + "'");
+                try {
+                    log.info("[UrbanCode Deploy] add link starts...");
+                    compClient.addComponentVersionLink(componentName, version, linkName, linkUrl);
+                    log.info("[UrbanCode Deploy] add link ends...");
+                }
+                catch (Exception ex) {
+                    log.info("[UrbanCode Deploy] add link failed...");
+                    log.info("Failed to add a version link: " + ex.getMessage());
+                    throw new AbortException("Failed to add a version link: " + ex.getMessage());
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Check whether a version already exists with the content about to be pushed
+     *
+     * @param componentName The name of the component
+     * @param version The name of the version
+     * @param contentDigest The digest of the files to push
+     * @return True if the version exists with the same digest, and its ID was published
+     * @throws AbortException If the version exists with different or unknown content
+     */
+    private boolean findIdenticalVersion(String componentName, String version, String contentDigest)
+    throws AbortException {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("component", componentName);
+        query.put("version", version);
+
+        String versionId;
+        try {
+            versionId = restHelper.get("/cli/version/getVersionId", query).trim();
+        }
+        catch (RestHelper.StatusException ex) {
+            // only a version that doesn't exist yet is pushed, other errors must not hide an existing one
+            if (isVersionNotFound(ex) || !componentExists(componentName, ex)) {
+                return false;
+            }
+            throw new AbortException("An error occurred while looking up version '" + version + "' of component '" +
+                                     componentName + "' : " + ex.getMessage());
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred while looking up version '" + version + "' of component '" +
+                                     componentName + "' : " + ex.getMessage());
+        }
+
+        String existingDigest = null;
+        try {
+            JSONArray versionProperties = restHelper.getJSONArray("/cli/version/versionProperties", query);
+            for (int i = 0; i < versionProperties.length(); i++) {
+                JSONObject property = versionProperties.getJSONObject(i);
+                if (CONTENT_DIGEST_PROPERTY.equals(property.optString("name"))) {
+                    existingDigest = property.optString("value");
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred while retrieving the properties of version '" + version + "' : " +
+                                     ex.getMessage());
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while processing the properties of version '" + version + "' : " +
+                                     ex.getMessage());
+        }
+
+        // the digest is written last, a version without one is left over from a push that didn't finish
+        if (existingDigest == null) {
+            throw new AbortException("Version '" + version + "' already exists on component '" + componentName + "' " +
+                                     "without a content digest. Either a previous push of it stopped before its files, " +
+                                     "properties and link were all stored, or it was pushed without 'Skip Identical " +
+                                     "Version'. Delete the version in IBM UrbanCode Deploy to push it again, or use a new " +
+                                     "version name.");
+        }
+        if (!contentDigest.equals(existingDigest)) {
+            throw new AbortException("Version '" + version + "' already exists on component '" + componentName + "' " +
+                                     "with different content. Use a new version name to push these files.");
+        }
+
+        listener.getLogger().println("Version '" + version + "' already exists on component '" + componentName +
+                                     "' with UUID '" + versionId + "' and identical content. Skipping the upload.");
+        try {
+            putEnvVar(componentName + "_VersionId", versionId);
+        }
+        catch (Exception ex) {
+            listener.getLogger().println("[Warning] Failed to set version ID as environment variable.");
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a component exists after looking up one of its versions failed
+     *
+     * @param componentName The name of the component
+     * @param lookupError The error of the version lookup, thrown again if the component can't be checked
+     * @return False if the server answered that the component doesn't exist
+     * @throws AbortException
+     */
+    private boolean componentExists(String componentName, RestHelper.StatusException lookupError)
+    throws AbortException {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("component", componentName);
+        try {
+            restHelper.get("/cli/component/info", query);
+            return true;
+        }
+        catch (RestHelper.StatusException ex) {
+            if (ex.getStatus() == 404 || ex.getStatus() == 400) {
+                return false;
+            }
+        }
+        catch (IOException ex) {
+            // reported with the error of the version lookup
+        }
+        throw new AbortException("An error occurred while looking up a version of component '" + componentName +
+                                 "' : " + lookupError.getMessage());
+    }
+
+    /**
+     * @return True if the server answered that the version doesn't exist
+     */
+    private static boolean isVersionNotFound(RestHelper.StatusException ex) {
+        String message = ex.getMessage() == null ? "" : ex.getMessage().toLowerCase();
+        return ex.getStatus() == 404 || (ex.getStatus() == 400 && message.contains("no version"));
+    }
+
+    /**
+     * Wait for a triggered import to finish
+     *
+     * @param watcher The watcher started before the import was triggered
+     * @throws AbortException
+     */
+    private void waitForImport(ImportWatcher watcher) throws AbortException {
+        try {
+            watcher.waitForVersion(listener);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AbortException("Interrupted while waiting for the import of component '" +
+                                     watcher.getComponent() + "'");
+        }
+    }
+
+    /**
+     * Publish the ID of an imported version and the import duration as environment variables
+     *
+     * @param watcher The watcher of the finished import
+     */
+    public void completeImport(ImportWatcher watcher) {
+        JSONObject version = watcher.getVersion();
+        String componentName = watcher.getComponent();
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(watcher.getDurationMillis());
+        if (version == null) {
+            listener.getLogger().println("The import of component '" + componentName + "' finished without creating " +
+                                         "a new version in " + seconds + " seconds");
+            try {
+                putEnvVar(componentName + "_ImportDuration", String.valueOf(seconds));
+            }
+            catch (Exception ex) {
+                listener.getLogger().println("[Warning] Failed to set the import duration as an environment variable.");
+            }
+            return;
+        }
+        String versionId = version.optString("id");
+        listener.getLogger().println("Imported version '" + version.optString("name") + "' of component '" +
+                                     componentName + "' with UUID '" + versionId + "' in " + seconds + " seconds");
+
+        try {
+            putEnvVar(componentName + "_VersionId", versionId);
+            putEnvVar(componentName + "_ImportDuration", String.valueOf(seconds));
+        }
+        catch (Exception ex) {
+            listener.getLogger().println("[Warning] Failed to set the imported version as environment variables.");
+        }
+    }
+
+    /**
+     * Return from createVersion right after triggering an import, leaving the wait to
+     * the caller so the imports of several components can be waited for together
+     *
+     * @param deferImportWait
+     */
+    public void setDeferImportWait(boolean deferImportWait) {
+        this.deferImportWait = deferImportWait;
+    }
+
+    /**
+     * @return The watcher of an import left to the caller to wait for, or null
+     */
+    public ImportWatcher getPendingImport() {
+        return pendingImport;
+    }
+
+    /**
+     * Limit the rate of file uploads, shared by all uploads to the same server from this JVM
+     *
+     * @param bytesPerSecond The maximum upload rate, 0 for unlimited
+     */
+    public void setUploadRateLimit(long bytesPerSecond) {
+        this.uploadRateLimit = bytesPerSecond;
+    }
+
+    /**
+     * @return The metrics of the last pushed version, or null if nothing was pushed
+     */
+    public UploadMetrics getUploadMetrics() {
+        return uploadMetrics;
+    }
+
+    /**
+     * @return True if the push needs the list of files before uploading: to report a plan,
+     * check upload limits or compute a content digest
+     */
+    private boolean needsUploadPlan(Push pushBlock) {
+        return pushBlock.getPushPlanOnly() || pushBlock.getPushSkipIdentical()
+                || !StringUtils.isBlank(envVars.expand(pushBlock.getMaxUploadFiles()))
+                || !StringUtils.isBlank(envVars.expand(pushBlock.getMaxUploadSize()));
+    }
+
+    /**
+     * Report the files a push will upload and fail if the configured limits are exceeded
+     *
+     * @param pushBlock The Push block holding the limits
+     * @param scanResult The files matched in the base directory
+     * @throws AbortException
+     */
+    private void checkUploadPlan(Push pushBlock, FileScanner.ScanResult scanResult) throws AbortException {
+        long maxFiles = parseLimit(envVars.expand(pushBlock.getMaxUploadFiles()), "Maximum Files");
+        long maxSize = parseLimit(envVars.expand(pushBlock.getMaxUploadSize()), "Maximum Size (MB)") * 1024L * 1024L;
+
+        listener.getLogger().println("Upload plan: " + scanResult.getFileCount() + " files, " +
+                                     UploadMonitor.formatBytes(scanResult.getTotalBytes()));
+        listener.getLogger().println("Largest files:");
+        for (FileScanner.ScannedFile file : scanResult.getLargestFiles(PLAN_LARGEST_FILES)) {
+            listener.getLogger().println("    " + UploadMonitor.formatBytes(file.getSize()) + "  " + file.getPath());
+        }
+
+        // files with the conversion extensions are uploaded in the configured charset
+        String[] extensions = ConfigTemplate.of(pushBlock.getExtensions()).expandList(envVars);
+        if (extensions.length > 0) {
+            int convertedFiles = 0;
+            long convertedBytes = 0L;
+            for (FileScanner.ScannedFile file : scanResult.getFiles()) {
+                if (hasExtension(file.getPath(), extensions)) {
+                    convertedFiles++;
+                    convertedBytes += file.getSize();
+                }
+            }
+            String charset = envVars.expand(pushBlock.getCharset());
+            listener.getLogger().println("Files to convert: " + convertedFiles + " files, " +
+                                         UploadMonitor.formatBytes(convertedBytes) + " to charset " +
+                                         (StringUtils.isBlank(charset) ? Charset.defaultCharset().name() : charset.trim()));
+        }
+
+        long rate = uploadRateLimit > 0 ? uploadRateLimit : UploadMonitor.getLastThroughput();
+        if (rate > 0) {
+            listener.getLogger().println("Estimated upload time: " + (scanResult.getTotalBytes() / rate) + " seconds at " +
+                                         UploadMonitor.formatBytes(rate) + "/s");
+        }
+
+        if (maxFiles > 0 && scanResult.getFileCount() > maxFiles) {
+            throw new AbortException("The upload of " + scanResult.getFileCount() + " files exceeds the maximum of " +
+                                     maxFiles + " files. Check the include and exclude patterns.");
+        }
+        if (maxSize > 0 && scanResult.getTotalBytes() > maxSize) {
+            throw new AbortException("The upload of " + UploadMonitor.formatBytes(scanResult.getTotalBytes()) +
+                                     " exceeds the maximum of " + UploadMonitor.formatBytes(maxSize) +
+                                     ". Check the include and exclude patterns.");
+        }
+    }
+
+    /**
+     * @param path The path of a file
+     * @param extensions Extensions such as txt, .txt or *.txt
+     * @return True if the file name ends with one of the extensions, ignoring case
+     */
+    private static boolean hasExtension(String path, String[] extensions) {
+        String name = path.substring(path.lastIndexOf('/') + 1).toLowerCase();
+        for (String extension : extensions) {
+            String suffix = extension.toLowerCase();
+            if (suffix.startsWith("*")) {
+                suffix = suffix.substring(1);
+            }
+            if (!suffix.startsWith(".")) {
+                suffix = "." + suffix;
+            }
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long parseLimit(String limit, String fieldName) throws AbortException {
+        if (StringUtils.isBlank(limit)) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(limit.trim());
+        }
+        catch (NumberFormatException ex) {
+            throw new AbortException("'" + fieldName + "' must be a number: " + limit);
+        }
+    }
+
     /**
      * Upload files to component version
      *
@@ -282,9 +751,10 @@ public class VersionHelper {
         if (!base.exists()) {
             throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not exist");
         }
-        
-        if(base.list().length==0) {
-        	throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not contain any files to upload. Please place files.");
+
+        if (!new FileScanner(includes, excludes).hasMatch(base)) {
+            throw new AbortException("Base artifact directory " + base.getAbsolutePath() + " does not contain any files " +
+                                     "matching the include and exclude patterns. Please place files.");
         }
 
         try {
@@ -310,25 +780,29 @@ public class VersionHelper {
      */
     private void putEnvVar(String key, String value) throws IOException {
         key = key.replaceAll(" ", "_");
-        listener.getLogger().println("Setting environment variable " + key + ".");
+        BuildLogger.detail(listener, "Setting environment variable " + key + ".");
         Jenkins jenkins = Jenkins.getInstance();
         DescribableList<NodeProperty<?>, NodePropertyDescriptor> globalNodeProperties =
                 jenkins.getGlobalNodeProperties();
-        List<EnvironmentVariablesNodeProperty> envVarsNodePropertyList =
-                globalNodeProperties.getAll(hudson.slaves.EnvironmentVariablesNodeProperty.class);
 
-        EnvironmentVariablesNodeProperty newEnvVarsNodeProperty = null;
-        EnvVars envVars = null;
+        // versions of several components may be created at once
+        synchronized (ENV_VARS_LOCK) {
+            List<EnvironmentVariablesNodeProperty> envVarsNodePropertyList =
+                    globalNodeProperties.getAll(hudson.slaves.EnvironmentVariablesNodeProperty.class);
+
+            EnvironmentVariablesNodeProperty newEnvVarsNodeProperty = null;
+            EnvVars envVars = null;
 
-        if (envVarsNodePropertyList == null || envVarsNodePropertyList.isEmpty()) {
-           newEnvVarsNodeProperty = new hudson.slaves.EnvironmentVariablesNodeProperty();
-           globalNodeProperties.add(newEnvVarsNodeProperty);
-           envVars = newEnvVarsNodeProperty.getEnvVars();
-        } else {
-           envVars = envVarsNodePropertyList.get(0).getEnvVars();
+            if (envVarsNodePropertyList == null || envVarsNodePropertyList.isEmpty()) {
+               newEnvVarsNodeProperty = new hudson.slaves.EnvironmentVariablesNodeProperty();
+               globalNodeProperties.add(newEnvVarsNodeProperty);
+               envVars = newEnvVarsNodeProperty.getEnvVars();
+            } else {
+               envVars = envVarsNodePropertyList.get(0).getEnvVars();
+            }
+            envVars.put(key, value);
+            jenkins.save();
         }
-        envVars.put(key, value);
-        jenkins.save();
      }
 
     /**
@@ -352,7 +826,9 @@ public class VersionHelper {
     }
 
     /**
-     * Set properties on a component version, handling property definitions
+     * Set properties on a component version, handling property definitions.
+     * Each property is written by its own task so the REST calls run concurrently,
+     * and all failed properties are reported together.
      *
      * @param component The name of the component which contains the component version
      * @param version The name of the version on the component to set the properties for
@@ -365,91 +841,145 @@ public class VersionHelper {
         Map<String,String> properties)
     throws AbortException {
         if (!properties.isEmpty()) {
-            JSONObject propSheetDef;
-            String propSheetDefId;
-            String propSheetDefPath;
-            JSONArray existingPropDefJsonArray;
+            PropSheetDef propSheetDef = getVersionPropSheetDef(component);
+            int newPropDefs = createPropDefs(component, propSheetDef, properties.keySet());
 
-            // acquire prop sheet definition and it's existing propDefs
-            try {
-                propSheetDef = compClient.getComponentVersionPropSheetDef(component);
-                propSheetDefId = (String) propSheetDef.get("id");
-                propSheetDefPath = (String) propSheetDef.get("path");
-                existingPropDefJsonArray = propClient.getPropSheetDefPropDefs(propSheetDefPath);
+            // the values go to the prop sheet of the version, they can be written together
+            List<Callable<Void>> writes = new ArrayList<Callable<Void>>();
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                writes.add(versionPropertyWrite(component, version, property.getKey(), property.getValue()));
             }
-            catch (IOException ex) {
-                throw new AbortException("An error occurred acquiring property sheets: " + ex.getMessage());
+
+            listener.getLogger().println("Setting " + writes.size() + " version properties (" + newPropDefs +
+                                         " new property definitions)");
+            ParallelTasks.runAll("version property updates", writes, PROPERTY_THREADS);
+        }
+    }
+
+    /**
+     * Get the version prop sheet definition of a component and the names of its
+     * property definitions, from the cache when possible
+     *
+     * @param component The name of the component
+     * @return The prop sheet definition
+     * @throws AbortException
+     */
+    private PropSheetDef getVersionPropSheetDef(String component) throws AbortException {
+        PropSheetDef propSheetDef = PropSheetDefCache.get(ucdUrl.toString(), component);
+        if (propSheetDef != null) {
+            return propSheetDef;
+        }
+
+        // acquire prop sheet definition and it's existing propDefs
+        String propSheetDefId;
+        String propSheetDefPath;
+        JSONArray existingPropDefJsonArray;
+        try {
+            JSONObject propSheetDefJson = compClient.getComponentVersionPropSheetDef(component);
+            propSheetDefId = (String) propSheetDefJson.get("id");
+            propSheetDefPath = (String) propSheetDefJson.get("path");
+            existingPropDefJsonArray = propClient.getPropSheetDefPropDefs(propSheetDefPath);
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred acquiring property sheets: " + ex.getMessage());
+        }
+        catch (JSONException e) {
+            throw new AbortException("An error occurred while processing the JSON object of the version property sheet: " +
+                                     e.getMessage());
+        }
+
+        List<String> existingPropNames = new ArrayList<String>();
+        for (int i = 0; i < existingPropDefJsonArray.length(); i++) {
+            try {
+                existingPropNames.add(existingPropDefJsonArray.getJSONObject(i).getString("name"));
             }
-            catch (JSONException e) {
-                throw new AbortException("An error occurred while processing the JSON object of the version property sheet: " +
-                                         e.getMessage());
+            catch (JSONException ex) {
+                throw new AbortException("An error occurred while processing the JSON object of an existing property " +
+                                         "definition: " + ex.getMessage());
             }
+        }
 
-            // update existing properties
-            for (int i = 0; i < existingPropDefJsonArray.length(); i++) {
-                JSONObject propDef;
-                String propName;
+        return PropSheetDefCache.put(ucdUrl.toString(), component, propSheetDefId, propSheetDefPath, existingPropNames);
+    }
 
-                try {
-                    propDef = existingPropDefJsonArray.getJSONObject(i);
-                    propName = propDef.getString("name");
+    /**
+     * Create the missing property definitions of a component version prop sheet definition.
+     * Every definition created changes the version of the prop sheet definition, so they are
+     * created one at a time, also across the builds of this JVM.
+     *
+     * @param component The name of the component
+     * @param propSheetDef The prop sheet definition
+     * @param propNames The names of the properties about to be set
+     * @return The number of property definitions created
+     * @throws AbortException
+     */
+    private int createPropDefs(String component, PropSheetDef propSheetDef, Collection<String> propNames)
+    throws AbortException {
+        int created = 0;
+        synchronized (PropSheetDefCache.getLock(ucdUrl.toString(), component)) {
+            UUID propSheetDefUUID = null;
+            for (String propName : propNames) {
+                if (propSheetDef.hasPropDef(propName)) {
+                    continue;
                 }
-                catch (JSONException ex) {
-                    throw new AbortException("An error occurred while processing the JSON object of an existing property " +
-                                             "definition: " + ex.getMessage());
+                if (propSheetDefUUID == null) {
+                    propSheetDefUUID = UUID.fromString(propSheetDef.getId());
                 }
 
-                String propValue = properties.get(propName);
-
-                if (propValue != null) {
-                    try {
-                        listener.getLogger().println("Updating version property '" + propName + "' to '" + propValue + "'");
-                        verClient.setVersionProperty(version, component, propName, propValue, false);
-                        listener.getLogger().println("Successfully updated version property");
-                    }
-                    catch (IOException ex) {
-                        throw new AbortException("An error occurred while updating the property: " + ex.getMessage());
-                    }
+                try {
+                    BuildLogger.detail(listener, "Creating property definition for '" + propName + "'");
+                    propClient.createPropDef(propSheetDefUUID,
+                                             propSheetDef.getPath(),
+                                             propName,
+                                             "",
+                                             "",
+                                             false,
+                                             "TEXT",
+                                             "");
+                    propSheetDef.addPropDef(propName);
+                    created++;
                 }
-
-                properties.remove(propName);
-            }
-
-            // create new properties
-            if (!properties.isEmpty()) {
-                UUID propSheetDefUUID = UUID.fromString(propSheetDefId);
-
-                for (Map.Entry<String, String> property : properties.entrySet()) {
-                    String propName = property.getKey();
-                    String propDescription = "";
-                    String propLabel = "";
-                    Boolean required = false;
-                    String propType = "TEXT";
-                    String propValue = property.getValue();
-
-                    try {
-                        listener.getLogger().println("Creating property definition for '" + propName + "'");
-                        propClient.createPropDef(propSheetDefUUID,
-                                                 propSheetDefPath,
-                                                 propName,
-                                                 propDescription,
-                                                 propLabel,
-                                                 required,
-                                                 propType,
-                                                 "");
-                        listener.getLogger().println("Setting version property '" + propName + "' to '" + propValue + "'");
-                        verClient.setVersionProperty(version, component, propName, propValue, false);
-                        listener.getLogger().println("Successfully set version property");
-                    }
-                    catch (IOException ex) {
-                        throw new AbortException("An error occurred while setting the version property: " + ex.getMessage());
-                    }
-                    catch (JSONException ex) {
-                        throw new AbortException("An error occurred while processing the JSON object for the property: " +
-                                                 ex.getMessage());
+                catch (IOException ex) {
+                    // the cached definitions may be stale, only a property defined elsewhere in the meantime is fine
+                    PropSheetDefCache.invalidate(ucdUrl.toString(), component);
+                    propSheetDef = getVersionPropSheetDef(component);
+                    if (!propSheetDef.hasPropDef(propName)) {
+                        throw new AbortException("An error occurred while creating the property definition for '" +
+                                                 propName + "': " + ex.getMessage());
                     }
+                    BuildLogger.detail(listener, "Property definition for '" + propName + "' already exists");
+                }
+                catch (JSONException ex) {
+                    throw new AbortException("An error occurred while processing the JSON object for the property " +
+                                             "definition '" + propName + "': " + ex.getMessage());
                 }
             }
         }
+        return created;
+    }
+
+    /**
+     * Create the task setting a single version property
+     */
+    private Callable<Void> versionPropertyWrite(
+        final String component,
+        final String version,
+        final String propName,
+        final String propValue)
+    {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws AbortException {
+                try {
+                    BuildLogger.detail(listener, "Setting version property '" + propName + "' to '" + propValue + "'");
+                    verClient.setVersionProperty(version, component, propName, propValue, false);
+                }
+                catch (IOException ex) {
+                    throw new AbortException("An error occurred while setting the version property '" + propName +
+                                             "': " + ex.getMessage());
+                }
+                return null;
+            }
+        };
     }
 }
@@ -0,0 +1,367 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import hudson.AbortException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * This class keeps the versions of a component on the controller to resolve
+ * version selectors such as @latest, @status=Approved or @tag=release. The
+ * whole version list is downloaded once, later resolutions only fetch the
+ * newest page of versions and merge it in, dropping the versions of the
+ * page's time range that are gone. Statuses and tags are only fetched for the
+ * versions a selector actually looks at, a few at a time and without holding
+ * the index, and are kept for the life of the index. Only the versions of the
+ * newest page, which are the ones statuses and tags are usually added to, are
+ * fetched again once their details are a minute old, so a selector without a
+ * recent match costs no more than a page of reads a minute. A version found
+ * deleted or archived meanwhile is dropped or skipped.
+ *
+ */
+public class VersionIndex {
+    private static final long FULL_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(30);
+    private static final long DETAILS_TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final int PAGE_SIZE = 25;
+    private static final int DETAILS_BATCH = 8;
+    private static final ConcurrentMap<String, VersionIndex> INDEXES = new ConcurrentHashMap<String, VersionIndex>();
+    private static final Comparator<Version> NEWEST_FIRST = new Comparator<Version>() {
+        @Override
+        public int compare(Version v1, Version v2) {
+            return v1.created < v2.created ? 1 : (v1.created > v2.created ? -1 : 0);
+        }
+    };
+
+    private String component;
+    private List<Version> versions = new ArrayList<Version>();
+    private Map<String, Version> versionsById = new HashMap<String, Version>();
+    private long fullyLoaded;
+
+    private VersionIndex(String component) {
+        this.component = component;
+    }
+
+    /**
+     * Resolve a version selector of a component
+     *
+     * @param restHelper The helper to query the server with
+     * @param serverUrl The url of the UCD server
+     * @param component The name of the component
+     * @param selector The selector, such as @latest or @status=Approved,tag=release
+     * @return The name of the newest version matching the selector
+     * @throws AbortException If the selector is invalid or no version matches it
+     */
+    public static String resolve(RestHelper restHelper, String serverUrl, String component, String selector)
+    throws AbortException {
+        Selector parsed = Selector.parse(selector);
+        String key = serverUrl + "|" + component;
+        VersionIndex index = INDEXES.get(key);
+        if (index == null) {
+            INDEXES.putIfAbsent(key, new VersionIndex(component));
+            index = INDEXES.get(key);
+        }
+
+        Version version = index.find(restHelper, parsed);
+        if (version == null) {
+            throw new AbortException("No version of component '" + component + "' matches '" + selector + "'");
+        }
+        return version.name;
+    }
+
+    /**
+     * @return True if a requested version is a selector rather than a version name
+     */
+    public static boolean isSelector(String version) {
+        return version.startsWith("@");
+    }
+
+    private Version find(final RestHelper restHelper, Selector selector) throws AbortException {
+        List<Version> candidates = new ArrayList<Version>();
+        synchronized (this) {
+            refresh(restHelper);
+            for (Version version : versions) {
+                if (version.active) {
+                    candidates.add(version);
+                }
+            }
+        }
+        if (!selector.needsDetails()) {
+            return candidates.isEmpty() ? null : candidates.get(0);
+        }
+
+        // newest first, fetching the details of a batch concurrently before matching it
+        for (int start = 0; start < candidates.size(); start += DETAILS_BATCH) {
+            List<Version> batch = candidates.subList(start, Math.min(start + DETAILS_BATCH, candidates.size()));
+            final List<Version> stale = new ArrayList<Version>();
+            List<Callable<Details>> reads = new ArrayList<Callable<Details>>();
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                for (int i = 0; i < batch.size(); i++) {
+                    final Version version = batch.get(i);
+                    boolean recent = start + i < PAGE_SIZE;
+                    if (version.detailsLoaded == 0 || (recent && now - version.detailsLoaded >= DETAILS_TTL)) {
+                        stale.add(version);
+                        reads.add(new Callable<Details>() {
+                            @Override
+                            public Details call() throws AbortException {
+                                return loadDetails(restHelper, version);
+                            }
+                        });
+                    }
+                }
+            }
+            List<Details> loaded = ParallelTasks.runAll("version reads", reads, DETAILS_BATCH);
+
+            synchronized (this) {
+                for (int i = 0; i < stale.size(); i++) {
+                    Version version = stale.get(i);
+                    Details details = loaded.get(i);
+                    if (details == null) {
+                        versions.remove(version);
+                        versionsById.remove(version.id);
+                        continue;
+                    }
+                    version.statuses = details.statuses;
+                    version.tags = details.tags;
+                    version.active = details.active;
+                    version.detailsLoaded = details.loaded;
+                }
+                for (Version version : batch) {
+                    if (version.active && versionsById.get(version.id) == version && selector.matches(version)) {
+                        return version;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private void refresh(RestHelper restHelper) throws AbortException {
+        long now = System.currentTimeMillis();
+        if (now - fullyLoaded > FULL_REFRESH_INTERVAL) {
+            replace(getVersions(restHelper, -1));
+            fullyLoaded = now;
+            return;
+        }
+
+        // the newest page is enough unless more versions were created since the last refresh
+        List<Version> page = getVersions(restHelper, PAGE_SIZE);
+        boolean overlaps = page.size() < PAGE_SIZE;
+        List<Version> added = new ArrayList<Version>();
+        Set<String> pageIds = new HashSet<String>();
+        long oldest = Long.MAX_VALUE;
+        for (Version version : page) {
+            pageIds.add(version.id);
+            oldest = Math.min(oldest, version.created);
+            Version known = versionsById.get(version.id);
+            if (known != null) {
+                overlaps = true;
+                known.active = version.active;
+            }
+            else {
+                added.add(version);
+            }
+        }
+
+        if (!overlaps) {
+            replace(getVersions(restHelper, -1));
+            fullyLoaded = now;
+        }
+        else {
+            // a known version as new as the page but missing from it was deleted
+            boolean whole = page.size() < PAGE_SIZE;
+            for (Iterator<Version> it = versions.iterator(); it.hasNext();) {
+                Version version = it.next();
+                if (!pageIds.contains(version.id) && (whole || version.created > oldest)) {
+                    it.remove();
+                    versionsById.remove(version.id);
+                }
+            }
+            for (Version version : added) {
+                versions.add(version);
+                versionsById.put(version.id, version);
+            }
+            Collections.sort(versions, NEWEST_FIRST);
+        }
+    }
+
+    private void replace(List<Version> loaded) {
+        Map<String, Version> loadedById = new HashMap<String, Version>();
+        for (Version version : loaded) {
+            // keep the statuses and tags already fetched
+            Version known = versionsById.get(version.id);
+            if (known != null) {
+                version.statuses = known.statuses;
+                version.tags = known.tags;
+                version.detailsLoaded = known.detailsLoaded;
+            }
+            loadedById.put(version.id, version);
+        }
+        Collections.sort(loaded, NEWEST_FIRST);
+        versions = loaded;
+        versionsById = loadedById;
+    }
+
+    private List<Version> getVersions(RestHelper restHelper, int numResults) throws AbortException {
+        Map<String, String> query = new HashMap<String, String>();
+        query.put("component", component);
+        if (numResults > 0) {
+            query.put("numResults", String.valueOf(numResults));
+        }
+
+        try {
+            JSONArray array = restHelper.getJSONArray("/cli/component/versions", query);
+            List<Version> loaded = new ArrayList<Version>();
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                Version version = new Version();
+                version.id = json.getString("id");
+                version.name = json.getString("name");
+                version.created = json.optLong("created");
+                version.active = json.optBoolean("active", true) && !json.optBoolean("archived", false);
+                loaded.add(version);
+            }
+            return loaded;
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred while retrieving the versions of component '" + component +
+                                     "' : " + ex.getMessage());
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while processing the versions of component '" + component +
+                                     "' : " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Fetch the statuses and tags of a version, without touching the index
+     *
+     * @return The details, or null if the version was deleted
+     */
+    private Details loadDetails(RestHelper restHelper, Version version) throws AbortException {
+        try {
+            JSONObject json = restHelper.getJSONObject("/rest/deploy/version/" + version.id,
+                    new HashMap<String, String>());
+            Details details = new Details();
+            details.statuses = names(json.optJSONArray("statuses"), "status");
+            details.tags = names(json.optJSONArray("tags"), "tag");
+            details.active = json.optBoolean("active", true) && !json.optBoolean("archived", false);
+            details.loaded = System.currentTimeMillis();
+            return details;
+        }
+        catch (RestHelper.StatusException ex) {
+            if (ex.getStatus() == 404) {
+                return null;
+            }
+            throw new AbortException("An error occurred while retrieving version '" + version.name +
+                                     "' of component '" + component + "' : " + ex.getMessage());
+        }
+        catch (IOException ex) {
+            throw new AbortException("An error occurred while retrieving version '" + version.name +
+                                     "' of component '" + component + "' : " + ex.getMessage());
+        }
+        catch (JSONException ex) {
+            throw new AbortException("An error occurred while processing version '" + version.name +
+                                     "' of component '" + component + "' : " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Collect the names of status or tag objects, which are either named themselves
+     * or wrap a named object
+     */
+    private static Set<String> names(JSONArray array, String wrapper) throws JSONException {
+        Set<String> names = new HashSet<String>();
+        if (array == null) {
+            return names;
+        }
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            JSONObject wrapped = json.optJSONObject(wrapper);
+            names.add(wrapped != null ? wrapped.optString("name") : json.optString("name"));
+        }
+        return names;
+    }
+
+    private static class Version {
+        private String id;
+        private String name;
+        private long created;
+        private boolean active;
+        private Set<String> statuses = Collections.emptySet();
+        private Set<String> tags = Collections.emptySet();
+        private long detailsLoaded;
+    }
+
+    private static class Details {
+        private Set<String> statuses;
+        private Set<String> tags;
+        private boolean active;
+        private long loaded;
+    }
+
+    /**
+     * A parsed version selector: @latest, or comma separated status= and tag= filters
+     * that the newest matching version must all satisfy
+     */
+    private static class Selector {
+        private List<String> statuses = new ArrayList<String>();
+        private List<String> tags = new ArrayList<String>();
+
+        private static Selector parse(String selector) throws AbortException {
+            Selector parsed = new Selector();
+            for (String filter : selector.substring(1).split(",")) {
+                filter = filter.trim();
+                int delim = filter.indexOf('=');
+                String name = delim < 0 ? filter : filter.substring(0, delim).trim();
+                String value = delim < 0 ? "" : filter.substring(delim + 1).trim();
+
+                if (name.equalsIgnoreCase("latest") && delim < 0) {
+                    continue;
+                }
+                else if (name.equalsIgnoreCase("status") && !value.isEmpty()) {
+                    parsed.statuses.add(value);
+                }
+                else if (name.equalsIgnoreCase("tag") && !value.isEmpty()) {
+                    parsed.tags.add(value);
+                }
+                else {
+                    throw new AbortException("Invalid version selector '" + selector + "', selectors are of the form " +
+                                             "@latest, @status={Status} or @tag={Tag}, separated by commas");
+                }
+            }
+            return parsed;
+        }
+
+        private boolean needsDetails() {
+            return !statuses.isEmpty() || !tags.isEmpty();
+        }
+
+        private boolean matches(Version version) {
+            return version.statuses.containsAll(statuses) && version.tags.containsAll(tags);
+        }
+    }
+}
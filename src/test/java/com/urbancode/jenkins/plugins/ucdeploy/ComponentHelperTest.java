@@ -0,0 +1,67 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.EnvVars;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.urbancode.jenkins.plugins.ucdeploy.ComponentHelper.CreateComponentBlock;
+import com.urbancode.jenkins.plugins.ucdeploy.DeliveryHelper.Push;
+import com.urbancode.ud.client.ApplicationClient;
+import com.urbancode.ud.client.ComponentClient;
+
+/**
+ * Runs component flows against recorded server responses
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class ComponentHelperTest {
+    private RestReplayServer server;
+    private ByteArrayOutputStream log;
+    private StreamTaskListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        log = new ByteArrayOutputStream();
+        listener = new StreamTaskListener(log);
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void existingMemberIsNotAddedAgain() throws Exception {
+        server = new RestReplayServer(RestReplayServer.fixtures("existing-component"), 0);
+        server.start(0);
+
+        DefaultHttpClient client = new DefaultHttpClient();
+        ComponentHelper helper = new ComponentHelper(new ApplicationClient(server.getUri(), client),
+                new ComponentClient(server.getUri(), client), listener, new EnvVars(), server.getUri());
+        helper.createComponent("Orders", new CreateComponentBlock("", "Shop"),
+                new Push("1.0", ".", "**/*", "", "", "", "", "", false));
+
+        listener.getLogger().flush();
+        String output = log.toString("UTF-8");
+        assertTrue(output, output.contains("Component already exists in the application"));
+        assertEquals(0, server.getUnmatched());
+    }
+}
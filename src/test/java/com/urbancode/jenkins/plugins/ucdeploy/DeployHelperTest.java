@@ -0,0 +1,78 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.EnvVars;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.urbancode.jenkins.plugins.ucdeploy.DeployHelper.DeployBlock;
+import com.urbancode.jenkins.plugins.ucdeploy.ProcessHelper.CreateProcessBlock;
+
+/**
+ * Runs deployment flows against recorded server responses
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class DeployHelperTest {
+    private RestReplayServer server;
+    private StreamTaskListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        listener = new StreamTaskListener(new ByteArrayOutputStream());
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void deploymentOfDeployedVersionsIsSkipped() throws Exception {
+        server = new RestReplayServer(RestReplayServer.fixtures("skip-deployed"), 0);
+        server.start(0);
+
+        // a process created by the step isn't looked up before the deployment
+        DeployBlock deployBlock = new DeployBlock("Shop", "QA", "Deploy Orders", false,
+                new CreateProcessBlock("Orders"), null, null, "Orders:@latest", "", "", false);
+        deployBlock.setSkipIfDeployed(true);
+        DeployHelper helper = new DeployHelper(server.getUri(), new DefaultHttpClient(), listener, new EnvVars(), true);
+
+        assertEquals(DeployHelper.SKIPPED, helper.runDeployment(deployBlock));
+        assertEquals(0, server.getUnmatched());
+    }
+
+    @Test
+    public void onlyInstallProcessesAreSkipped() throws Exception {
+        String install = "{\"type\":\"componentEnvironmentIterator\",\"children\":[{\"type\":\"inventoryVersionDiff\"," +
+                "\"children\":[{\"type\":\"componentProcess\",\"componentProcessName\":\"Deploy\"}]}]}";
+        String restart = "{\"type\":\"componentEnvironmentIterator\",\"children\":[{\"type\":\"componentProcess\"," +
+                "\"componentProcessName\":\"Restart\"}]}";
+
+        assertTrue(DeployHelper.isInstallProcess(new JSONObject(
+                "{\"rootActivity\":{\"type\":\"graph\",\"children\":[" + install + "]}}")));
+        assertFalse(DeployHelper.isInstallProcess(new JSONObject(
+                "{\"rootActivity\":{\"type\":\"graph\",\"children\":[" + install + "," + restart + "]}}")));
+        assertFalse(DeployHelper.isInstallProcess(new JSONObject(
+                "{\"rootActivity\":{\"type\":\"graph\",\"children\":[{\"type\":\"finish\"}]}}")));
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves REST exchanges, recorded by RestTrafficRecorder or written
+ * by hand, from a local http server, so the tests can point the helpers at it
+ * instead of a UCD server. Requests are matched by method,
+ * path and query, or by method and path if no recording has the same query.
+ * Repeated requests, such as polling for a status, are answered with the
+ * recordings in the order they were made, the last one again once they run
+ * out. Every response is delayed by the configured latency.
+ *
+ */
+public class RestReplayServer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int THREADS = 16;
+
+    private Map<String, Recordings> byUri = new HashMap<String, Recordings>();
+    private Map<String, Recordings> byPath = new HashMap<String, Recordings>();
+    private long latencyMillis;
+    private AtomicInteger served = new AtomicInteger();
+    private AtomicInteger unmatched = new AtomicInteger();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param fixtureDir The directory of the exchanges, in the format RestTrafficRecorder writes
+     * @param latencyMillis The delay before every response
+     * @throws IOException If the fixtures can't be read
+     */
+    public RestReplayServer(File fixtureDir, long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+
+        File[] fixtures = fixtureDir.listFiles();
+        if (fixtures == null) {
+            throw new IOException("Fixture directory '" + fixtureDir + "' doesn't exist");
+        }
+        // the file names start with the sequence number of the exchange
+        Arrays.sort(fixtures);
+        for (File fixture : fixtures) {
+            if (fixture.isFile() && fixture.getName().endsWith(".json")) {
+                load(fixture);
+            }
+        }
+    }
+
+    /**
+     * @param name The name of a fixture directory under replay/ in the test resources
+     * @return The fixture directory
+     * @throws IOException If there is no such directory
+     */
+    public static File fixtures(String name) throws IOException {
+        URL url = RestReplayServer.class.getResource("replay/" + name);
+        if (url == null) {
+            throw new IOException("No fixtures named '" + name + "'");
+        }
+        try {
+            return new File(url.toURI());
+        }
+        catch (URISyntaxException ex) {
+            throw new IOException("Invalid fixture location " + url, ex);
+        }
+    }
+
+    private void load(File fixture) throws IOException {
+        Recording recording = new Recording();
+        try {
+            JSONObject json = new JSONObject(read(fixture));
+            recording.method = json.getString("method");
+            recording.uri = json.getString("uri");
+            recording.status = json.getInt("status");
+            recording.contentType = json.optString("contentType", null);
+            recording.body = json.has("responseBody") ? json.getString("responseBody").getBytes(UTF_8) : null;
+        }
+        catch (JSONException ex) {
+            throw new IOException("Invalid fixture '" + fixture + "' : " + ex.getMessage(), ex);
+        }
+
+        recordings(byUri, recording.method + " " + recording.uri).add(recording);
+        recordings(byPath, recording.method + " " + path(recording.uri)).add(recording);
+    }
+
+    private static Recordings recordings(Map<String, Recordings> map, String key) {
+        Recordings recordings = map.get(key);
+        if (recordings == null) {
+            recordings = new Recordings();
+            map.put(key, recordings);
+        }
+        return recordings;
+    }
+
+    private static String path(String uri) {
+        int query = uri.indexOf('?');
+        return query < 0 ? uri : uri.substring(0, query);
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Start serving on the loopback interface
+     *
+     * @param port The port to listen on, 0 for any free port
+     */
+    public synchronized void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(executor);
+        server.createContext("/", new ReplayHandler());
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return The url to configure as the UCD server url
+     */
+    public synchronized URI getUri() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * @return The number of requests answered with a recording
+     */
+    public int getServed() {
+        return served.get();
+    }
+
+    /**
+     * @return The number of requests without a recording, answered with 404
+     */
+    public int getUnmatched() {
+        return unmatched.get();
+    }
+
+    private Recording find(String method, String uri) {
+        Recordings recordings = byUri.get(method + " " + uri);
+        if (recordings == null) {
+            recordings = byPath.get(method + " " + path(uri));
+        }
+        return recordings == null ? null : recordings.next();
+    }
+
+    /**
+     * The recordings of one request, replayed in order
+     */
+    private static class Recordings {
+        private List<Recording> recordings = new ArrayList<Recording>();
+        private int next;
+
+        private synchronized void add(Recording recording) {
+            recordings.add(recording);
+        }
+
+        private synchronized Recording next() {
+            Recording recording = recordings.get(next);
+            if (next < recordings.size() - 1) {
+                next++;
+            }
+            return recording;
+        }
+    }
+
+    private static class Recording {
+        private String method;
+        private String uri;
+        private int status;
+        private String contentType;
+        private byte[] body;
+    }
+
+    private class ReplayHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                // the request body isn't matched, but must be read for the connection to be reused
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                }
+
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+
+                Recording recording = find(exchange.getRequestMethod(),
+                        RestTrafficRecorder.pathAndQuery(exchange.getRequestURI().toString()));
+                byte[] body;
+                if (recording == null) {
+                    unmatched.incrementAndGet();
+                    body = ("No recording of " + exchange.getRequestMethod() + " " + exchange.getRequestURI())
+                            .getBytes(UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                    exchange.sendResponseHeaders(404, body.length);
+                }
+                else {
+                    served.incrementAndGet();
+                    body = recording.body;
+                    if (recording.contentType != null) {
+                        exchange.getResponseHeaders().set("Content-Type", recording.contentType);
+                    }
+                    exchange.sendResponseHeaders(recording.status, body == null || body.length == 0 ? -1 : body.length);
+                }
+
+                if (body != null && body.length > 0) {
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+}
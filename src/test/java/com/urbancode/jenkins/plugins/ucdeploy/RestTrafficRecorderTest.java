@@ -0,0 +1,144 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks what RestTrafficRecorder keeps of the exchanges it records
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class RestTrafficRecorderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PROPERTIES = "[{\"name\":\"db.password\",\"value\":\"s3cret\",\"secure\":true}," +
+                                             "{\"name\":\"port\",\"value\":\"8080\",\"secure\":false}]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private RestReplayServer server;
+
+    @After
+    public void tearDown() {
+        System.clearProperty(RestTrafficRecorder.DIR_PROPERTY);
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void secureValuesAreMasked() throws Exception {
+        JSONArray properties = new JSONArray(RestTrafficRecorder.redact(PROPERTIES));
+        assertEquals("****", properties.getJSONObject(0).getString("value"));
+        assertEquals("8080", properties.getJSONObject(1).getString("value"));
+
+        assertEquals("/cli/component/propValue?component=Orders&name=key&value=****&isSecure=true",
+                RestTrafficRecorder.redactUri("/cli/component/propValue?component=Orders&name=key&value=abc&isSecure=true"));
+        assertEquals("not json", RestTrafficRecorder.redact("not json"));
+    }
+
+    @Test
+    public void recordingMasksSecureValuesAndLeavesOutLargeBodies() throws Exception {
+        File fixtures = folder.newFolder("fixtures");
+        char[] large = new char[2 * 1024 * 1024];
+        Arrays.fill(large, 'x');
+        writeFixture(new File(fixtures, "000001-GET_properties.json"), "/properties", PROPERTIES);
+        writeFixture(new File(fixtures, "000002-GET_download.json"), "/download", new String(large));
+        server = new RestReplayServer(fixtures, 0);
+        server.start(0);
+
+        File recorded = folder.newFolder("recorded");
+        System.setProperty(RestTrafficRecorder.DIR_PROPERTY, recorded.getAbsolutePath());
+        DefaultHttpClient client = new DefaultHttpClient();
+        RestTrafficRecorder.install(client);
+        RestHelper restHelper = new RestHelper(server.getUri(), client);
+
+        // the caller still gets the whole responses
+        assertEquals(PROPERTIES, restHelper.get("/properties", new HashMap<String, String>()));
+        assertEquals(large.length, restHelper.get("/download", new HashMap<String, String>()).length());
+
+        File[] files = recorded.listFiles();
+        Arrays.sort(files);
+        assertEquals(2, files.length);
+
+        JSONObject properties = read(files[0]);
+        assertFalse(properties.getString("responseBody").contains("s3cret"));
+        assertTrue(properties.getString("responseBody").contains("8080"));
+
+        JSONObject download = read(files[1]);
+        assertFalse(download.has("responseBody"));
+        assertEquals(large.length, download.getLong("responseBodyLength"));
+    }
+
+    @Test
+    public void recordedRequestBodiesAreCountedOnce() throws Exception {
+        File fixtures = folder.newFolder("fixtures");
+        writeFixture(new File(fixtures, "000001-PUT_integrate.json"), "PUT", "/integrate", "{}");
+        server = new RestReplayServer(fixtures, 0);
+        server.start(0);
+
+        System.setProperty(RestTrafficRecorder.DIR_PROPERTY, folder.newFolder("recorded").getAbsolutePath());
+        DefaultHttpClient client = new DefaultHttpClient();
+        RestCallRecorder.install(client);
+        RestTrafficRecorder.install(client);
+        RestCallRecorder calls = new RestCallRecorder();
+        RestCallRecorder previous = calls.attach();
+        String body = "{\"component\":\"Orders\"}";
+        try {
+            new RestHelper(server.getUri(), client).put("/integrate", body);
+        }
+        finally {
+            calls.detach(previous);
+        }
+
+        assertEquals(1, calls.getEndpoints().size());
+        assertEquals(body.length(), calls.getEndpoints().get(0).getBytesOut());
+    }
+
+    private static void writeFixture(File file, String uri, String body) throws Exception {
+        writeFixture(file, "GET", uri, body);
+    }
+
+    private static void writeFixture(File file, String method, String uri, String body) throws Exception {
+        JSONObject fixture = new JSONObject();
+        fixture.put("method", method);
+        fixture.put("uri", uri);
+        fixture.put("status", 200);
+        fixture.put("contentType", "application/json");
+        fixture.put("responseBody", body);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(fixture.toString().getBytes(UTF_8));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static JSONObject read(File file) throws Exception {
+        return new JSONObject(new String(Files.readAllBytes(file.toPath()), UTF_8));
+    }
+}
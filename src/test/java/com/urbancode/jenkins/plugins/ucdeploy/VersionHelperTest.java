@@ -0,0 +1,65 @@
+/**
+ * (c) Copyright IBM Corporation 2017.
+ * This is licensed under the following license.
+ * The Apache License, Version 2.0 (http://www.apache.org/licenses/LICENSE-2.0)
+ * U.S. Government Users Restricted Rights:  Use, duplication or disclosure restricted by GSA ADP Schedule Contract with IBM Corp.
+ */
+
+package com.urbancode.jenkins.plugins.ucdeploy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.EnvVars;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.urbancode.jenkins.plugins.ucdeploy.DeliveryHelper.Pull;
+import com.urbancode.jenkins.plugins.ucdeploy.VersionHelper.VersionBlock;
+
+/**
+ * Runs version flows against recorded server responses
+ *
+ */
+@SuppressWarnings("deprecation") // Triggered by DefaultHttpClient
+public class VersionHelperTest {
+    private RestReplayServer server;
+    private ByteArrayOutputStream log;
+    private StreamTaskListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        log = new ByteArrayOutputStream();
+        listener = new StreamTaskListener(log);
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void importWaitFindsTheNewVersion() throws Exception {
+        server = new RestReplayServer(RestReplayServer.fixtures("import-wait"), 0);
+        server.start(0);
+
+        Pull pull = new Pull("", "", "", false);
+        pull.setPullWait(true);
+        VersionHelper helper = new VersionHelper(server.getUri(), new DefaultHttpClient(), listener, new EnvVars());
+        helper.createVersion(new VersionBlock("Orders", "", null, pull), "", "");
+
+        listener.getLogger().flush();
+        String output = log.toString("UTF-8");
+        assertTrue(output, output.contains("Imported version '2.0' of component 'Orders' with UUID " +
+                                           "'22222222-2222-2222-2222-222222222222'"));
+        assertEquals(0, server.getUnmatched());
+    }
+}